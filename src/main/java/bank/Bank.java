@@ -2,20 +2,76 @@ package bank;
 
 /**
  * Created by frm on 16/04/16.
+ * Accounts are identified by int ids. The methods taking and returning ids as strings are kept as an adapter
+ * for existing callers, and parse or format the id before calling their int counterpart.
  */
 public interface Bank {
+    // Account id returned when no account could be created
+    int NO_ACCOUNT = Integer.MIN_VALUE;
+
     /**
      * Creates a new account
-     * @return - account unique ID
+     * @return - account id, or NO_ACCOUNT if it couldn't be created
      */
-    String create();
+    int createAccount();
+
+    /**
+     * Access the account balance
+     * @param account - account id
+     * @return - account balance. Will be null if the account doesn't exist
+     */
+    Integer balance(int account);
+
+    /**
+     * Makes a movement in a given account. See movement(String, int)
+     * @param account - account id
+     * @param amount - amount to be withdrawn/deposited
+     * @return - boolean indicating if the movement was successful
+     */
+    boolean movement(int account, int amount);
+
+    /**
+     * Transfers a given amount of money between two accounts. See transfer(String, String, int)
+     * @param origin - account id from where to transfer the money from
+     * @param destination - account id to where the money will go
+     * @param amount - transfer amount
+     * @return - indicates if it was possible to transfer, or not, the account
+     */
+    boolean transfer(int origin, int destination, int amount);
+
+    /**
+     * Gets the last n movements made by a given account
+     * @param account - account id
+     * @param n - number of movements
+     * @return - list of movements
+     */
+    String latest(int account, int n);
+
+    /**
+     * Gets the last n operations made by a given account, as typed records
+     * @param account - account id
+     * @param n - number of operations
+     * @return - last operations, newest first. Will be null if the account doesn't exist
+     */
+    History history(int account, int n);
+
+    /**
+     * Creates a new account
+     * @return - account unique ID. Will be null if the account couldn't be created
+     */
+    default String create() {
+        int account = createAccount();
+        return account == NO_ACCOUNT ? null : Integer.toString(account);
+    }
 
     /**
      * Access the account balance
      * @param account - account unique ID
      * @return - account balance. Will be null if the account doesn't exist
      */
-    Integer balance(String account);
+    default Integer balance(String account) {
+        return balance(Integer.parseInt(account));
+    }
 
     /**
      * Makes a movement in a given account.
@@ -27,7 +83,9 @@ public interface Bank {
      * @param amount - amount to be withdrawn/deposited
      * @return - boolean indicating if the movement was successful
      */
-    boolean movement(String account, int amount);
+    default boolean movement(String account, int amount) {
+        return movement(Integer.parseInt(account), amount);
+    }
 
     /**
      * Transfers a given amount of money between two accounts.
@@ -38,7 +96,9 @@ public interface Bank {
      * @param amount - transfer amount
      * @return - indicates if it was possible to transfer, or not, the account
      */
-    boolean transfer(String origin, String destination, int amount);
+    default boolean transfer(String origin, String destination, int amount) {
+        return transfer(Integer.parseInt(origin), Integer.parseInt(destination), amount);
+    }
 
     /**
      * Gets the last n movements made by a given account
@@ -46,5 +106,17 @@ public interface Bank {
      * @param n - number of movements
      * @return - list of movements
      */
-    String latest(String account, int n);
+    default String latest(String account, int n) {
+        return latest(Integer.parseInt(account), n);
+    }
+
+    /**
+     * Gets the last n operations made by a given account, as typed records
+     * @param account - account to check
+     * @param n - number of operations
+     * @return - last operations, newest first. Will be null if the account doesn't exist
+     */
+    default History history(String account, int n) {
+        return history(Integer.parseInt(account), n);
+    }
 }
@@ -0,0 +1,162 @@
+package bank;
+
+import java.io.Serializable;
+import java.sql.Timestamp;
+
+/**
+ * Last operations of an account, newest first, as returned by Bank.history.
+ * Operations are kept as flat int rows of WIDTH values, plus their time in epoch milliseconds,
+ * so that the result holds no object per operation and is formatted by whoever displays it.
+ */
+public class History implements Serializable {
+    // Row layout
+    public static final int WIDTH = 7;
+    public static final int TYPE = 0, ID = 1, AMOUNT = 2, FROM = 3, TO = 4, FROM_BALANCE = 5, TO_BALANCE = 6;
+
+    // Operation types
+    public static final int MOVEMENT = 1;
+    public static final int TRANSFER = 2;
+    public static final int CREATE = 3;
+
+    private int account;
+    private int[] rows;
+    private long[] timestamps;
+
+    /**
+     * Creates a history
+     * @param account - account id
+     * @param rows - operations, newest first, WIDTH ints per operation
+     * @param timestamps - time of each operation, in epoch milliseconds
+     */
+    public History(int account, int[] rows, long[] timestamps) {
+        this.account = account;
+        this.rows = rows;
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * @return - account id
+     */
+    public int getAccount() {
+        return account;
+    }
+
+    /**
+     * @return - number of operations
+     */
+    public int size() {
+        return timestamps.length;
+    }
+
+    /**
+     * @return - operations, WIDTH ints per operation
+     */
+    public int[] getRows() {
+        return rows;
+    }
+
+    /**
+     * @return - time of each operation, in epoch milliseconds
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * @param i - operation index, 0 being the newest
+     * @return - operation id
+     */
+    public int getId(int i) {
+        return rows[i * WIDTH + ID];
+    }
+
+    /**
+     * @param i - operation index, 0 being the newest
+     * @return - operation type (MOVEMENT, TRANSFER or CREATE)
+     */
+    public int getType(int i) {
+        return rows[i * WIDTH + TYPE];
+    }
+
+    /**
+     * @param i - operation index, 0 being the newest
+     * @return - moved or transferred amount
+     */
+    public int getAmount(int i) {
+        return rows[i * WIDTH + AMOUNT];
+    }
+
+    /**
+     * @param i - operation index, 0 being the newest
+     * @return - account of the operation (withdrawn account for transfers)
+     */
+    public int getAccountFrom(int i) {
+        return rows[i * WIDTH + FROM];
+    }
+
+    /**
+     * @param i - operation index, 0 being the newest
+     * @return - deposited account of a transfer
+     */
+    public int getAccountTo(int i) {
+        return rows[i * WIDTH + TO];
+    }
+
+    /**
+     * @param i - operation index, 0 being the newest
+     * @return - balance of the account after the operation (withdrawn account for transfers)
+     */
+    public int getBalanceFrom(int i) {
+        return rows[i * WIDTH + FROM_BALANCE];
+    }
+
+    /**
+     * @param i - operation index, 0 being the newest
+     * @return - balance of the deposited account after a transfer
+     */
+    public int getBalanceTo(int i) {
+        return rows[i * WIDTH + TO_BALANCE];
+    }
+
+    /**
+     * @param i - operation index, 0 being the newest
+     * @return - time of the operation, in epoch milliseconds
+     */
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    /**
+     * @return - one line per operation (id, type, accounts, amount, balances and timestamp)
+     */
+    @Override
+    public String toString() {
+        StringBuilder a = new StringBuilder();
+        for(int i = 0; i < size(); i++) {
+            int type = getType(i);
+            a.append("Id: ").append(getId(i));
+
+            if(type == TRANSFER) {
+                a.append("\tType: TRANSFER")
+                        .append("\tFrom Client: ").append(getAccountFrom(i))
+                        .append("\tTo Client: ").append(getAccountTo(i))
+                        .append("\tAmount: ").append(getAmount(i))
+                        .append("\tFrom Balance: ").append(getBalanceFrom(i))
+                        .append("\tTo Balance: ").append(getBalanceTo(i));
+            } else if(type == MOVEMENT) {
+                a.append("\tType: MOVEMENT")
+                        .append("\tClient: ").append(getAccountFrom(i))
+                        .append("\tAmount: ").append(getAmount(i))
+                        .append("\tBalance: ").append(getBalanceFrom(i));
+            } else {
+                a.append("\tType: CREATE")
+                        .append("\tClient: ").append(getAccountFrom(i));
+            }
+
+            a.append("\tTimestamp: ").append(new Timestamp(getTimestamp(i))).append("\n");
+        }
+
+        if(a.length() == 0) a.append("No operations for account ").append(account);
+        return a.toString();
+    }
+}
@@ -1,39 +1,124 @@
 package client;
 
 import bank.Bank;
+import bank.History;
 import net.sf.jgcs.*;
+import net.sf.jgcs.annotation.PointToPoint;
+import net.sf.jgcs.membership.MembershipListener;
+import net.sf.jgcs.membership.MembershipSession;
 import net.sf.jgcs.jgroups.JGroupsGroup;
 import net.sf.jgcs.jgroups.JGroupsProtocolFactory;
 import net.sf.jgcs.jgroups.JGroupsService;
+import communication.Batch;
 import communication.Packet;
+import communication.Read;
 import communication.Invocation;
 import server.Server;
 
 import java.io.IOException;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by joaorodrigues on 12 Apr 16.
  * Stub class that acts as an intermediate in remote method invocation.
+ * Requests are pipelined: every invocation gets its own packet id and a future, completed
+ * when the first reply with that id arrives. A single stub can be shared by many threads
+ * and keep up to MAX_OUTSTANDING requests in flight. The Bank methods block on the futures.
+ * When batching is enabled, invocations made within BATCH_MICROS of each other (up to BATCH_SIZE of them)
+ * are multicast together as a single Batch, and the batched reply is fanned out to the individual futures.
+ * Reads (balance and latest) can skip the total order and be sent to a single replica, depending on
+ * the read consistency level. Replicas are learned from the replies they send.
+ * With retries enabled, ordered requests still waiting for a reply after RETRY_MILLIS are sent again with the
+ * same id. Replicas answer a resent write from their reply cache, so it is never executed twice.
+ * On the previous version's wire (see Packet) batching, retries and reads skipping the total order are disabled,
+ * since older replicas would ignore batches and direct reads, and execute resent writes again.
  */
-public class BankStub implements Bank, MessageListener {
-    private String stubId;
-    private int msgId;
+public class BankStub implements Bank, MessageListener, MembershipListener {
+    /**
+     * Consistency level of reads
+     */
+    public enum Consistency {
+        // Reads are totally ordered with the writes and executed by every replica
+        ORDERED,
+        // Reads are executed by a single replica, which may not have applied the latest writes
+        ANY,
+        // Reads are executed by a single replica, once it has applied every write this stub has seen a reply to
+        READ_YOUR_WRITES,
+        // An ordered marker is sent first, the read is executed by a single replica once it has reached it
+        LINEARIZABLE
+    }
+
+    // Maximum number of requests waiting for a reply. Further invocations block until a reply arrives
+    private static final int MAX_OUTSTANDING = Integer.getInteger("bank.stub.maxOutstanding", 4096);
+
+    // Batching configuration. A batch size of 1 or less sends every invocation on its own
+    private static final int BATCH_SIZE = Integer.getInteger("bank.stub.batchSize", 1);
+    private static final long BATCH_MICROS = Long.getLong("bank.stub.batchMicros", 200);
+
+    // Time waited for a reply before sending an ordered request again, and number of times it is resent.
+    // Retries are disabled if not positive
+    private static final long RETRY_MILLIS = Long.getLong("bank.stub.retryMillis", 0);
+    private static final int RETRIES = Integer.getInteger("bank.stub.retries", 3);
+
+    // Default read consistency level. See Consistency
+    private static final Consistency READS = Consistency.valueOf(System.getProperty("bank.stub.reads", "ORDERED"));
+
+    // Ordered marker of linearizable reads
+    private static final Invocation SYNC = Invocation.typed(Invocation.OP_SYNC, 0, 0, 0);
+
+    private int stubId;
+    private final AtomicInteger msgId = new AtomicInteger();
     private DataSession data;
     private Service service;
 
-    // Allows to sleep in a condition, until a reply has been received
-    private final Lock replyLock = new ReentrantLock();
-    private final Condition replyCondition = replyLock.newCondition();
+    // Requests waiting for a reply, by packet id
+    private final Map<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+    private final Semaphore outstanding = new Semaphore(MAX_OUTSTANDING);
 
-    // Holds the reply to be shared between the invocation and onMessage
-    private Object reply;
+    // Invocations waiting to be sent in the next batch, guarded by batchLock
+    private final Object batchLock = new Object();
+    private List<Long> batchIds = new ArrayList<>();
+    private List<Invocation> batchItems = new ArrayList<>();
+    private ScheduledExecutorService batcher;
+    private ScheduledExecutorService retrier;
+
+    private volatile Consistency readConsistency = READS;
+    // Replicas known to this stub, learned from the senders of replies
+    private final CopyOnWriteArrayList<SocketAddress> replicas = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    // Highest watermark received in a reply
+    private final AtomicInteger lastSeen = new AtomicInteger();
+    // Reads sent to a single replica and waiting for a reply, by packet id
+    private final Map<Long, DirectRead> directReads = new ConcurrentHashMap<>();
+    private MembershipSession membership;
 
     public BankStub() throws IOException {
-        stubId = (new java.rmi.dgc.VMID()).toString();
-        msgId = 0;
+        stubId = new SecureRandom().nextInt();
+        if(BATCH_SIZE > 1 && !Packet.isJavaWire())
+            batcher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "stub-batcher");
+                t.setDaemon(true);
+                return t;
+            });
+        if(RETRY_MILLIS > 0 && !Packet.isJavaWire())
+            retrier = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "stub-retrier");
+                t.setDaemon(true);
+                return t;
+            });
         setUpConnection();
     }
 
@@ -50,103 +135,506 @@ public class BankStub implements Bank, MessageListener {
         data = p.openDataSession(gc);
 
         data.setMessageListener(this);
+        if(control instanceof MembershipSession) {
+            membership = (MembershipSession) control;
+            membership.setMembershipListener(this);
+        }
         control.join();
     }
 
+    /**
+     * Sets the consistency level of the following reads
+     * @param consistency - read consistency level
+     */
+    public void setReadConsistency(Consistency consistency) {
+        this.readConsistency = consistency;
+    }
+
+    /**
+     * @return - consistency level of reads
+     */
+    public Consistency getReadConsistency() {
+        return readConsistency;
+    }
+
+    @Override
+    public int createAccount() {
+        String id = create();
+        return id == null ? Bank.NO_ACCOUNT : Integer.parseInt(id);
+    }
+
+    @Override
+    public Integer balance(int account) {
+        return (Integer) await(read(Invocation.typed(Invocation.OP_BALANCE, account, 0, 0)));
+    }
+
+    @Override
+    public boolean movement(int account, int amount) {
+        return (boolean) invoke(Invocation.typed(Invocation.OP_MOVEMENT, account, amount, 0));
+    }
+
+    @Override
+    public boolean transfer(int origin, int destination, int amount) {
+        return (boolean) invoke(Invocation.typed(Invocation.OP_TRANSFER, origin, destination, amount));
+    }
+
+    @Override
+    public String latest(int account, int n) {
+        return (String) await(read(Invocation.typed(Invocation.OP_LATEST, account, n, 0)));
+    }
+
+    @Override
+    public History history(int account, int n) {
+        return (History) await(read(Invocation.typed(Invocation.OP_HISTORY, account, n, 0)));
+    }
+
     @Override
     public String create() {
-        return (String) invoke(Invocation.CREATE);
+        return (String) invoke(Invocation.of(Invocation.CREATE));
     }
 
     @Override
     public Integer balance(String account) {
-        return (Integer) invoke(Invocation.BALANCE, account);
+        return (Integer) await(read(Invocation.of(Invocation.BALANCE, account)));
     }
 
     @Override
     public boolean movement(String account, int amount) {
-        return (boolean) invoke(Invocation.MOVEMENT, account, amount);
+        return (boolean) invoke(Invocation.of(Invocation.MOVEMENT, account, amount));
     }
 
     @Override
     public boolean transfer(String origin, String destination, int amount) {
-        return (boolean) invoke(Invocation.TRANSFER, origin, destination, amount);
+        return (boolean) invoke(Invocation.of(Invocation.TRANSFER, origin, destination, amount));
     }
 
     public String latest(String account, int n){
-        return (String) invoke(Invocation.LATEST, account, n);
+        return (String) await(read(Invocation.of(Invocation.LATEST, account, n)));
     }
 
     @Override
-    public Object onMessage(Message message) {
-        replyLock.lock();
+    public History history(String account, int n) {
+        return (History) await(read(Invocation.of(Invocation.HISTORY, account, n)));
+    }
+
+    /**
+     * Asynchronous version of create
+     * @return - future completed with the new account unique ID
+     */
+    public CompletableFuture<String> createAsync() {
+        return invokeAsync(Invocation.of(Invocation.CREATE)).thenApply(r -> (String) r);
+    }
+
+    /**
+     * Asynchronous version of balance
+     * @param account - account unique ID
+     * @return - future completed with the account balance, or null if the account doesn't exist
+     */
+    public CompletableFuture<Integer> balanceAsync(String account) {
+        return read(Invocation.of(Invocation.BALANCE, account)).thenApply(r -> (Integer) r);
+    }
+
+    /**
+     * Asynchronous version of movement
+     * @param account - unique account ID to process the movement
+     * @param amount - amount to be withdrawn/deposited
+     * @return - future completed with the movement outcome
+     */
+    public CompletableFuture<Boolean> movementAsync(String account, int amount) {
+        return invokeAsync(Invocation.of(Invocation.MOVEMENT, account, amount)).thenApply(r -> (Boolean) r);
+    }
+
+    /**
+     * Asynchronous version of transfer
+     * @param origin - account from where to transfer the money from
+     * @param destination - account to where the money will go
+     * @param amount - transfer amount
+     * @return - future completed with the transfer outcome
+     */
+    public CompletableFuture<Boolean> transferAsync(String origin, String destination, int amount) {
+        return invokeAsync(Invocation.of(Invocation.TRANSFER, origin, destination, amount)).thenApply(r -> (Boolean) r);
+    }
+
+    /**
+     * Asynchronous version of latest
+     * @param account - account to check
+     * @param n - number of movements
+     * @return - future completed with the list of movements
+     */
+    public CompletableFuture<String> latestAsync(String account, int n) {
+        return read(Invocation.of(Invocation.LATEST, account, n)).thenApply(r -> (String) r);
+    }
+
+    /**
+     * Asynchronous version of history
+     * @param account - account to check
+     * @param n - number of operations
+     * @return - future completed with the last operations, or null if the account doesn't exist
+     */
+    public CompletableFuture<History> historyAsync(String account, int n) {
+        return read(Invocation.of(Invocation.HISTORY, account, n)).thenApply(r -> (History) r);
+    }
+
+    /**
+     * @return - number of requests waiting for a reply
+     */
+    public int getOutstanding() {
+        return pending.size();
+    }
 
+    @Override
+    public Object onMessage(Message message) {
         Packet received = new Packet(message.getPayload());
+        Object content = received.getContent();
+
+        // Requests multicast by other members are ignored
+        if(content instanceof Batch) {
+            Batch b = (Batch) content;
+            if(!b.isRequest()) {
+                observe(message.getSenderAddress(), received.getWatermark());
+                for(int i = 0; i < b.size(); i++)
+                    complete(b.getId(i), b.getItem(i));
+            }
+        } else if(!(content instanceof Invocation || content instanceof Read)) {
+            observe(message.getSenderAddress(), received.getWatermark());
+            complete(received.getId(), content);
+        }
 
+        return null;
+    }
+
+    /**
+     * Forgets the replicas that left the group.
+     * Reads sent to them are sent again, totally ordered.
+     */
+    @Override
+    public void onMembershipChange() {
+        List<SocketAddress> members;
         try {
-            Object content = received.getContent();
-
-            // If the received message is a reply and the id is the client's...
-            // ...continue running the code currently waiting for a reply
-            if((!(content instanceof Invocation)) && received.getId().equals(buildPacketId())) {
-                msgId++;
-                reply = content;
-                replyCondition.signal();
+            members = membership.getMembership().getMembershipList();
+        } catch (NotJoinedException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        replicas.retainAll(members);
+
+        for(Map.Entry<Long, DirectRead> e : directReads.entrySet()) {
+            if(!members.contains(e.getValue().target) && directReads.remove(e.getKey()) != null) {
+                try {
+                    send(new Packet(e.getKey(), e.getValue().invocation));
+                } catch (IOException ex) {
+                    fail(e.getKey(), ex);
+                }
             }
+        }
+    }
 
-        } finally{
-            replyLock.unlock();
+    @Override
+    public void onExcluded() {
+        replicas.clear();
+    }
+
+    /**
+     * Records the replica that sent a reply and the state it was in
+     * @param replica - address of the replica
+     * @param watermark - next operation id of the replica when it replied
+     */
+    private void observe(SocketAddress replica, int watermark) {
+        if(lastSeen.get() < watermark)
+            lastSeen.accumulateAndGet(watermark, Math::max);
+        if(replica != null && !replicas.contains(replica))
+            replicas.addIfAbsent(replica);
+    }
+
+    /**
+     * Completes the request with the given id.
+     * Only the first reply to each request completes it, later ones from other servers find nothing pending
+     * @param id - request packet id
+     * @param reply - reply content
+     */
+    private void complete(long id, Object reply) {
+        if(!directReads.isEmpty())
+            directReads.remove(id);
+
+        CompletableFuture<Object> future = pending.remove(id);
+        if(future != null) {
+            outstanding.release();
+            future.complete(reply);
+        }
+    }
+
+    /**
+     * Fails the request with the given id, if it is still pending
+     * @param id - request packet id
+     * @param e - cause of the failure
+     */
+    private void fail(long id, Throwable e) {
+        CompletableFuture<Object> future = pending.remove(id);
+        if(future != null) {
+            outstanding.release();
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Adds an invocation to the next batch, sending the batch if it is full.
+     * The first invocation of a batch schedules it to be sent after BATCH_MICROS.
+     * @param id - packet unique id
+     * @param i - invocation to be sent
+     */
+    private void enqueue(long id, Invocation i) {
+        boolean full;
+        synchronized (batchLock) {
+            batchIds.add(id);
+            batchItems.add(i);
+            full = batchIds.size() >= BATCH_SIZE;
+            if(batchIds.size() == 1 && !full)
+                batcher.schedule(this::sendBatch, BATCH_MICROS, TimeUnit.MICROSECONDS);
+        }
+
+        if(full)
+            sendBatch();
+    }
+
+    /**
+     * Multicasts every queued invocation in a single packet
+     */
+    private void sendBatch() {
+        List<Long> ids;
+        List<Invocation> items;
+        synchronized (batchLock) {
+            if(batchIds.isEmpty()) return;
+            ids = batchIds;
+            items = batchItems;
+            batchIds = new ArrayList<>(BATCH_SIZE);
+            batchItems = new ArrayList<>(BATCH_SIZE);
+        }
+
+        Packet p;
+        if(ids.size() == 1) {
+            p = new Packet(ids.get(0), items.get(0));
+        } else {
+            long[] idArray = new long[ids.size()];
+            for(int i = 0; i < idArray.length; i++)
+                idArray[i] = ids.get(i);
+            p = new Packet(idArray[0], new Batch(idArray, items.toArray()));
+        }
+
+        try {
+            send(p);
+        } catch (IOException e) {
+            for(long id : ids)
+                fail(id, e);
         }
-        return null;
     }
 
     /**
-     * Creates a remote invocation and sends it to all the members of the group
-     * @param request - type of invocation to be created. See Invocation class
-     * @param args - list of arguments to be sent
+     * Creates a remote invocation and sends it to all the members of the group,
+     * or queues it for the next batch when batching is enabled
+     * @param id - packet unique id
+     * @param i - invocation to be sent
      * @throws IOException
      */
-    private void sendRequest(String request, Object[] args) throws IOException {
-        Invocation i = new Invocation(request, args);
-        Packet p = new Packet(buildPacketId(), i);
+    private void sendRequest(long id, Invocation i) throws IOException {
+        if(batcher != null)
+            enqueue(id, i);
+        else
+            send(new Packet(id, i));
+    }
 
+    /**
+     * Multicasts a packet to all the members of the group
+     * @param p - packet to be sent
+     * @throws IOException
+     */
+    private void send(Packet p) throws IOException {
         Message message = data.createMessage();
         message.setPayload(p.getBytes());
         data.multicast(message, service, null);
     }
 
     /**
-     * Builds the expected packet unique id.
-     * The generated id is based on the expected message id
+     * Sends a packet directly to a given replica
+     * @param p - packet to be sent
+     * @param destination - address of the replica
+     * @throws IOException
+     */
+    private void send(Packet p, SocketAddress destination) throws IOException {
+        Message message = data.createMessage();
+        message.setPayload(p.getBytes());
+        data.multicast(message, service, null, new PointToPoint(destination));
+    }
+
+    /**
+     * Builds a new packet unique id.
+     * The generated id is based on the next message id
      * and the unique stub id.
-     * @return expected packet unique id
+     * @return new packet unique id
      */
-    private String buildPacketId() {
-        return msgId + "@" + stubId;
+    private long nextPacketId() {
+        return Packet.buildId(stubId, msgId.getAndIncrement());
+    }
+
+    /**
+     * Makes a remote method invocation without waiting for the reply.
+     * Blocks only if MAX_OUTSTANDING requests are already waiting for a reply.
+     * @param i - invocation to be sent
+     * @return - future completed with the reply from the server
+     */
+    private CompletableFuture<Object> invokeAsync(Invocation i) {
+        long id = nextPacketId();
+        CompletableFuture<Object> future = register(id);
+        if(future.isDone())
+            return future;
+
+        try {
+            sendRequest(id, i);
+        } catch (IOException e) {
+            fail(id, e);
+        }
+
+        if(retrier != null)
+            scheduleRetry(id, i, 1);
+        return future;
+    }
+
+    /**
+     * Sends a request again, on its own and with the same id, if it is still waiting for a reply after RETRY_MILLIS
+     * @param id - packet unique id
+     * @param i - invocation to be resent
+     * @param attempt - number of the retry, starting at 1
+     */
+    private void scheduleRetry(long id, Invocation i, int attempt) {
+        retrier.schedule(() -> {
+            if(!pending.containsKey(id))
+                return;
+            try {
+                send(new Packet(id, i));
+            } catch (IOException e) {
+                fail(id, e);
+                return;
+            }
+            if(attempt < RETRIES)
+                scheduleRetry(id, i, attempt + 1);
+        }, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes a read-only remote method invocation, according to the read consistency level
+     * @param i - invocation to be sent. Should be read-only
+     * @return - future completed with the reply from the server
+     */
+    private CompletableFuture<Object> read(Invocation i) {
+        switch(Packet.isJavaWire() ? Consistency.ORDERED : readConsistency) {
+            case ANY:
+                return readFrom(0, i);
+            case READ_YOUR_WRITES:
+                return readFrom(lastSeen.get(), i);
+            case LINEARIZABLE:
+                // The marker is ordered after every write that completed before the read started.
+                // Continues on another thread, since register may block (and replies complete on the delivery thread)
+                return invokeAsync(SYNC).thenComposeAsync(w -> w instanceof Integer
+                        ? readFrom((Integer) w, i)
+                        : invokeAsync(i));
+            default:
+                return invokeAsync(i);
+        }
+    }
+
+    /**
+     * Sends a read to a single replica, chosen round-robin.
+     * Falls back to an ordered invocation if no replica is known yet.
+     * @param watermark - operation id the replica must have reached before executing the read
+     * @param i - invocation to be sent. Should be read-only
+     * @return - future completed with the reply from the replica
+     */
+    private CompletableFuture<Object> readFrom(int watermark, Invocation i) {
+        SocketAddress target = pickReplica();
+        if(target == null)
+            return invokeAsync(i);
+
+        long id = nextPacketId();
+        CompletableFuture<Object> future = register(id);
+        if(future.isDone())
+            return future;
+
+        directReads.put(id, new DirectRead(target, i));
+        try {
+            send(new Packet(id, new Read(i, watermark)), target);
+        } catch (IOException e) {
+            directReads.remove(id);
+            fail(id, e);
+        }
+
+        return future;
+    }
+
+    /**
+     * @return - next known replica in round-robin order, or null if none is known
+     */
+    private SocketAddress pickReplica() {
+        Object[] known = replicas.toArray();
+        if(known.length == 0)
+            return null;
+        return (SocketAddress) known[Math.floorMod(nextReplica.getAndIncrement(), known.length)];
+    }
+
+    /**
+     * Registers a request waiting for a reply.
+     * Blocks if MAX_OUTSTANDING requests are already waiting for a reply.
+     * Requests must be registered before being sent, since the reply may arrive before multicast returns
+     * @param id - packet unique id
+     * @return - future completed with the reply, or failed if interrupted while waiting
+     */
+    private CompletableFuture<Object> register(long id) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        try {
+            outstanding.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        pending.put(id, future);
+        return future;
     }
 
     /**
      * Makes a remote method invocation.
-     * Since the "message received" invocation is a callback, this method
-     * will ensure that the stub sleeps until a reply is received.
-     * @param request - type of invocation to be created. See Invocation class
-     * @param args - list of arguments to be sent
+     * Sleeps until a reply is received.
+     * @param i - invocation to be sent
      * @return - received reply from the server
      */
-    private Object invoke(String request, Object... args) {
-        // Acquire the replyLock.
-        // This will allow the stub to sleep until a reply has been received
-        replyLock.lock();
+    private Object invoke(Invocation i) {
+        return await(invokeAsync(i));
+    }
+
+    /**
+     * Sleeps until the given request is complete
+     * @param future - future of the request
+     * @return - received reply from the server, or null if the request failed
+     */
+    private Object await(CompletableFuture<Object> future) {
         try {
-            sendRequest(request, args);
-            replyCondition.await(); // Sleep until a reply has arrived
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
-        } finally{
-            replyLock.unlock();
+            return future.join();
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace();
+            return null;
         }
+    }
 
-        // After sleeping, the reply will be available in the reply variable
-        return reply;
+    /**
+     * Read sent to a single replica, kept to be sent again if the replica leaves the group
+     */
+    private static class DirectRead {
+        final SocketAddress target;
+        final Invocation invocation;
+
+        DirectRead(SocketAddress target, Invocation invocation) {
+            this.target = target;
+            this.invocation = invocation;
+        }
     }
 }
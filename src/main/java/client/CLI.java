@@ -70,7 +70,8 @@ public class CLI {
                 break;
             case "latest":
                 if(args.length == 3){
-                    result = stub.latest(args[1], Integer.parseInt(args[2]));
+                    // Formatted here, the replica only sends the typed records
+                    result = stub.history(args[1], Integer.parseInt(args[2]));
                     if(result == null) result = DEFAULT_BALANCE_ERROR_MSG;
                 }
                 break;
@@ -1,6 +1,7 @@
 package client;
 
 import bank.Bank;
+import bank.History;
 
 import java.io.IOException;
 import java.util.HashMap;
@@ -28,8 +29,8 @@ public class Client implements Runnable {
     private Map<String, Integer> accounts;
     private int id;
 
-    public Client(int id, Map<String, Integer> m) throws IOException {
-        this.bank = new BankStub();
+    public Client(int id, Bank bank, Map<String, Integer> m) {
+        this.bank = bank;
         this.accounts = m;
         this.id = id;
     }
@@ -62,10 +63,10 @@ public class Client implements Runnable {
         return bank.balance(getRandomAccount());
     }
 
-    private String requestLogs() {
+    private History requestLogs() {
         String account = getRandomAccount();
         int n = new Random().nextInt(10) + 1; // interval: [1, 10]
-        return bank.latest(account, n);
+        return bank.history(account, n);
     }
 
     private void makeMovement() {
@@ -173,7 +174,7 @@ public class Client implements Runnable {
         return errors;
     }
 
-    private static void printResults(long start, long end, Map<String, Integer> sharedMap) throws IOException {
+    private static void printResults(long start, long end, Bank bank, Map<String, Integer> sharedMap) {
         long time = end - start;
 
         long requests = NR_THREADS * (NR_REQUESTS + NR_SEEDS);
@@ -185,7 +186,7 @@ public class Client implements Runnable {
                     .toString()
         );
 
-        int errors = verify(new BankStub(), sharedMap);
+        int errors = verify(bank, sharedMap);
 
         System.out.println(
                 new StringBuilder()
@@ -208,16 +209,18 @@ public class Client implements Runnable {
 
     public static void main(String[] args) throws IOException, InterruptedException {
         Map<String, Integer> m = new HashMap<>();
+        // A single group member, shared by every thread. Its requests are pipelined
+        Bank bank = new BankStub();
 
         for(int i = 0; i < NR_THREADS; i++)
-            new Thread(new Client(i + 1, m)).start();
+            new Thread(new Client(i + 1, bank, m)).start();
 
         startSignal.countDown(); // start testing simultaneously
         long start = System.currentTimeMillis();
         doneSignal.await(); // wait for threads to end
         long end = System.currentTimeMillis();
 
-        printResults(start, end, m);
+        printResults(start, end, bank, m);
         System.exit(0);
     }
 }
@@ -0,0 +1,53 @@
+package communication;
+
+import java.io.Serializable;
+
+/**
+ * Group of requests (or of their replies) sent inside a single Packet, so that they are
+ * totally ordered by a single multicast. Every item keeps the unique id of its own request.
+ * Replies to a batch of invocations are sent back as a batch with the same ids, in the same order.
+ */
+public class Batch implements Serializable {
+    private long[] ids;
+    private Object[] items;
+
+    /**
+     * Creates a batch with the given ids and items
+     * @param ids - unique id of each request
+     * @param items - invocations, or replies to them, in the same order as the ids
+     */
+    public Batch(long[] ids, Object[] items) {
+        this.ids = ids;
+        this.items = items;
+    }
+
+    /**
+     * @return - number of items in the batch
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param i - item position
+     * @return - unique id of the request at the given position
+     */
+    public long getId(int i) {
+        return ids[i];
+    }
+
+    /**
+     * @param i - item position
+     * @return - invocation or reply at the given position
+     */
+    public Object getItem(int i) {
+        return items[i];
+    }
+
+    /**
+     * @return - true if the batch holds invocations, false if it holds replies
+     */
+    public boolean isRequest() {
+        return items.length > 0 && items[0] instanceof Invocation;
+    }
+}
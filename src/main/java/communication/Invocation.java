@@ -5,8 +5,19 @@ import java.io.*;
 /**
  * Created by frm on 22/02/16.
  * Class representing the remote invocation to be processed by the server
+ * Bank commands whose arguments are all ints (account ids included) also have a typed form, holding the opcode
+ * and primitive arguments, so that the server can dispatch them with no string comparison, parsing or boxing.
+ * Invocations are serialized in the form of the previous version, with the command and its generic arguments
+ * only (see Packet), and deserialized in their generic form.
  */
 public class Invocation implements Serializable {
+    // Implicit serialVersionUID of the previous version's Invocation, which had the serialized fields below
+    private static final long serialVersionUID = -2101045748946773062L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("command", String.class),
+            new ObjectStreamField("args", Object[].class)
+    };
+
     // When making an RPC using this class,
     // use these variables to ensure the methods are supported.
     // Allows for code compatibility if the underlying method changes
@@ -16,10 +27,30 @@ public class Invocation implements Serializable {
     public static final String TRANSFER = "transfer";
     public static final String STATE    = "state";
     public static final String LATEST   = "latest";
+    // Typed variant of latest, answered with a History
+    public static final String HISTORY  = "history";
+    // Ordered marker with no effect, answered with the replica's watermark. Used by linearizable reads
+    public static final String SYNC     = "sync";
+    // Announces a replica that is ready to serve requests. Not answered
+    public static final String JOIN     = "join";
+
+    // Compact command codes, used by the binary wire format and for dispatch. 0 means the command has no code
+    public static final byte OP_CREATE = 1, OP_BALANCE = 2, OP_MOVEMENT = 3, OP_TRANSFER = 4, OP_STATE = 5,
+            OP_LATEST = 6, OP_SYNC = 7, OP_JOIN = 8, OP_HISTORY = 9;
+    private static final String[] OPCODES = {null, CREATE, BALANCE, MOVEMENT, TRANSFER, STATE, LATEST, SYNC, JOIN, HISTORY};
+    // Number of int arguments of each typed command, -1 for the commands that have no typed form
+    private static final int[] ARITY = {-1, 0, 1, 2, 3, -1, 2, 0, -1, 2};
 
     private String command;
     private Object[] args;
 
+    // Typed form: opcode and primitive arguments, in the order of the command's arguments
+    private byte opcode;
+    private boolean typed;
+    private int account;
+    private int target;
+    private int amount;
+
     /**
      * Creates an invocation with the given command and its arguments
      * @param command - command to be invoked remotely. Should be one of the provided class commands.
@@ -28,6 +59,69 @@ public class Invocation implements Serializable {
     public Invocation(String command, Object[] args) {
         this.command = command;
         this.args = args;
+        this.opcode = opcodeOf(command);
+    }
+
+    /**
+     * Creates a typed invocation
+     * @param opcode - command code
+     * @param account - account id (withdrawn account for transfers)
+     * @param target - deposited account id of a transfer
+     * @param amount - amount moved or transferred, or number of operations of latest and history
+     */
+    private Invocation(byte opcode, int account, int target, int amount) {
+        this.command = OPCODES[opcode];
+        this.opcode = opcode;
+        this.typed = true;
+        this.account = account;
+        this.target = target;
+        this.amount = amount;
+    }
+
+    /**
+     * Creates an invocation in its typed form if the command has one and every argument is an int
+     * or a numeric string, in its generic form otherwise
+     * @param command - command to be invoked remotely. Should be one of the provided class commands.
+     * @param args - arguments to the remote method invocation
+     * @return - invocation
+     */
+    public static Invocation of(String command, Object... args) {
+        byte op = opcodeOf(command);
+        if(ARITY[op] < 0 || args.length != ARITY[op])
+            return new Invocation(command, args);
+
+        int[] values = new int[3];
+        for(int i = 0; i < args.length; i++) {
+            if(args[i] instanceof Integer) {
+                values[i] = (Integer) args[i];
+            } else {
+                try {
+                    values[i] = Integer.parseInt((String) args[i]);
+                } catch (RuntimeException e) {
+                    return new Invocation(command, args);
+                }
+            }
+        }
+        return typed(op, values[0], values[1], values[2]);
+    }
+
+    /**
+     * Creates a typed invocation from its int arguments, in the order of the command's arguments
+     * @param opcode - command code of a typed command
+     * @param a - first argument
+     * @param b - second argument
+     * @param c - third argument
+     * @return - invocation
+     */
+    public static Invocation typed(byte opcode, int a, int b, int c) {
+        switch(opcode) {
+            case OP_MOVEMENT:
+            case OP_LATEST:
+            case OP_HISTORY:
+                return new Invocation(opcode, a, 0, b);
+            default:
+                return new Invocation(opcode, a, b, c);
+        }
     }
 
     /**
@@ -38,9 +132,128 @@ public class Invocation implements Serializable {
     }
 
     /**
-     * @return - command arguments
+     * @return - command arguments. Built from the typed arguments (with account ids as strings) if typed
      */
     public Object[] getArgs() {
+        if(args == null && typed) {
+            switch(opcode) {
+                case OP_BALANCE:
+                    args = new Object[] {Integer.toString(account)};
+                    break;
+                case OP_MOVEMENT:
+                case OP_LATEST:
+                case OP_HISTORY:
+                    args = new Object[] {Integer.toString(account), amount};
+                    break;
+                case OP_TRANSFER:
+                    args = new Object[] {Integer.toString(account), Integer.toString(target), amount};
+                    break;
+                default:
+                    args = new Object[0];
+            }
+        }
         return args;
     }
+
+    /**
+     * @return - true if the invocation is in its typed form, with primitive arguments
+     */
+    public boolean isTyped() {
+        return typed;
+    }
+
+    /**
+     * @return - number of int arguments of the typed form
+     */
+    public int getArity() {
+        return ARITY[opcode];
+    }
+
+    /**
+     * @param opcode - command code
+     * @return - number of int arguments of the command's typed form, or -1 if it has none
+     */
+    public static int arityOf(byte opcode) {
+        return opcode > 0 && opcode < ARITY.length ? ARITY[opcode] : -1;
+    }
+
+    /**
+     * @param i - argument index, in the order of the command's arguments
+     * @return - int argument of the typed form
+     */
+    public int getInt(int i) {
+        if(i == 0)
+            return account;
+        return opcode == OP_TRANSFER && i == 1 ? target : amount;
+    }
+
+    /**
+     * @return - account id of the typed form (withdrawn account for transfers)
+     */
+    public int getAccount() {
+        return account;
+    }
+
+    /**
+     * @return - deposited account id of a typed transfer
+     */
+    public int getTarget() {
+        return target;
+    }
+
+    /**
+     * @return - amount of a typed movement or transfer, or number of operations of latest and history
+     */
+    public int getAmount() {
+        return amount;
+    }
+
+    /**
+     * @return - true if the command doesn't change the bank state
+     */
+    public boolean isReadOnly() {
+        return opcode == OP_BALANCE || opcode == OP_LATEST || opcode == OP_HISTORY;
+    }
+
+    /**
+     * @return - compact code of the command, or 0 if it has none
+     */
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("command", command);
+        fields.put("args", getArgs());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        command = (String) fields.get("command", null);
+        args = (Object[]) fields.get("args", null);
+        opcode = opcodeOf(command);
+    }
+
+    /**
+     * Returns the compact code of a command
+     * @param command - one of the provided class commands
+     * @return - command code, or 0 if it has none
+     */
+    public static byte opcodeOf(String command) {
+        for(byte i = 1; i < OPCODES.length; i++)
+            if(OPCODES[i].equals(command))
+                return i;
+        return 0;
+    }
+
+    /**
+     * Returns the command with the given compact code
+     * @param opcode - command code
+     * @return - command, or null if the code is unknown
+     */
+    public static String commandOf(byte opcode) {
+        return opcode > 0 && opcode < OPCODES.length ? OPCODES[opcode] : null;
+    }
 }
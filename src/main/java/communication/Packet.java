@@ -6,27 +6,70 @@ import java.io.*;
  * Created by frm on 07/03/16.
  * Wrapper for objects to be sent inside a Message.
  * This class allows for auto marshalling and unmarshalling of any content.
+ * Packets are sent in a compact binary format (see PacketCodec) unless bank.wire is set to "java",
+ * in which case they are serialized in the form of the previous version: a String id ("msg@node") and
+ * the content, plus the watermark, which older nodes skip. Both formats are always accepted when receiving,
+ * and the reply to a packet received in the previous form is sent in that form, with the same id.
+ * A running group is upgraded by starting the new nodes with bank.wire=java until no older node is left.
+ * Older nodes only understand single invocations of their commands and plain replies, so on that wire stubs
+ * send every request on its own and totally ordered, and replicas of different versions don't transfer
+ * state to each other.
  */
 public class Packet implements Serializable {
-    private String id;
+    // Implicit serialVersionUID of the previous version's Packet, which had the serialized fields below
+    private static final long serialVersionUID = 8502987622516523388L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("id", String.class),
+            new ObjectStreamField("content", Object.class),
+            new ObjectStreamField("watermark", int.class)
+    };
+    private static final boolean JAVA_WIRE = "java".equals(System.getProperty("bank.wire"));
+
+    private long id;
     private Object content;
+    private int watermark;
+    // Id of a packet received in the previous version's form, sent back as is in its replies
+    private String legacyId;
 
     /**
      * Creates a packet with a given unique id and the attached object
-     * @param id - uniqued packet id
+     * @param id - uniqued packet id. See buildId
      * @param content - object to be attached
      */
-    public Packet(String id, Object content) {
+    public Packet(long id, Object content) {
         this.id = id;
         this.content = content;
     }
 
+    /**
+     * Creates a reply packet, tagged with the state of the replica that produced it
+     * @param id - uniqued packet id. See buildId
+     * @param content - object to be attached
+     * @param watermark - id of the next operation to be applied by the replying replica
+     */
+    public Packet(long id, Object content, int watermark) {
+        this(id, content);
+        this.watermark = watermark;
+    }
+
     /**
      * Creates a packet from the given bytes.
-     * Reconstructs and unmarshalls the underlying packet object.
+     * Reconstructs and unmarshalls the underlying packet object, in either wire format.
      * @param payload - packet bytes to be unmarshalled
      */
     public Packet(byte[] payload) {
+        if(PacketCodec.isBinary(payload)) {
+            try {
+                Packet m = PacketCodec.decode(payload);
+                this.id = m.id;
+                this.content = m.content;
+                this.watermark = m.watermark;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
         ByteArrayInputStream bis = new ByteArrayInputStream(payload);
         ObjectInputStream ois = null;
 
@@ -35,6 +78,8 @@ public class Packet implements Serializable {
             Packet m = (Packet) ois.readObject();
             this.id = m.id;
             this.content = m.content;
+            this.watermark = m.watermark;
+            this.legacyId = m.legacyId;
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
         } finally {
@@ -52,11 +97,54 @@ public class Packet implements Serializable {
         }
     }
 
+    /**
+     * Creates the reply to this packet, with the same id, sent in the previous version's form if this packet was
+     * @param content - object to be attached
+     * @param watermark - id of the next operation to be applied by the replying replica
+     * @return - reply packet
+     */
+    public Packet reply(Object content, int watermark) {
+        Packet p = new Packet(id, content, watermark);
+        p.legacyId = legacyId;
+        return p;
+    }
+
     /**
      * Marshalls the current object to a byte representation
      * @return - byte representation of the object
      */
     public byte[] getBytes() {
+        return JAVA_WIRE || legacyId != null ? toJavaBytes() : PacketCodec.encode(this);
+    }
+
+    /**
+     * @return - true if packets are sent in the previous version's form (bank.wire=java)
+     */
+    public static boolean isJavaWire() {
+        return JAVA_WIRE;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("id", legacyId != null ? legacyId : (int) id + "@" + (int) (id >>> 32));
+        fields.put("content", content);
+        fields.put("watermark", watermark);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        legacyId = (String) fields.get("id", null);
+        id = parseId(legacyId);
+        content = fields.get("content", null);
+        watermark = fields.get("watermark", 0);
+    }
+
+    /**
+     * Marshalls the current object using Java serialization
+     * @return - serialized representation of the object
+     */
+    byte[] toJavaBytes() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutputStream oos = null;
         byte[] obj = null;
@@ -86,10 +174,51 @@ public class Packet implements Serializable {
     /**
      * @return object unique id
      */
-    public String getId() {
+    public long getId() {
         return id;
     }
 
+    /**
+     * @return id of the next operation to be applied by the replica that sent the packet (0 for requests)
+     */
+    public int getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Builds a packet unique id from the sender's node id and its message counter.
+     * Node ids are random, so they are only unique along with the sender's address (see server.ReplyCache)
+     * @param node - id of the sending node
+     * @param msg - message counter of the sending node
+     * @return - packet unique id
+     */
+    public static long buildId(int node, int msg) {
+        return ((long) node << 32) | (msg & 0xffffffffL);
+    }
+
+    /**
+     * Parses a packet id of the previous version, "msg@node". Older nodes have String node ids, which are hashed
+     * @param legacyId - packet id of the previous version
+     * @return - packet unique id
+     */
+    static long parseId(String legacyId) {
+        int at = legacyId == null ? -1 : legacyId.indexOf('@');
+        if(at < 0)
+            return legacyId == null ? 0 : legacyId.hashCode();
+
+        String node = legacyId.substring(at + 1);
+        try {
+            int msg = Integer.parseInt(legacyId.substring(0, at));
+            try {
+                return buildId(Integer.parseInt(node), msg);
+            } catch (NumberFormatException e) {
+                return buildId(node.hashCode(), msg);
+            }
+        } catch (NumberFormatException e) {
+            return legacyId.hashCode();
+        }
+    }
+
     /**
      * @return object attached content
      */
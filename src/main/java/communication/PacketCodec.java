@@ -0,0 +1,491 @@
+package communication;
+
+import bank.History;
+
+import java.io.*;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Hand-rolled binary encoding of a Packet, used instead of Java serialization.
+ * Layout: magic byte, version byte, 64-bit packet id, varint watermark and the tagged content.
+ * Integers are zig-zag varints, invocations carry a one byte opcode instead of the command,
+ * and numeric strings (account ids) are sent as varints. Typed invocations are sent as their opcode
+ * followed by their int arguments, and decoded without boxing or strings.
+ * Batches are encoded item by item, each with its 64-bit request id.
+ * Histories are sent as their int rows, with timestamps as varint differences from the previous one.
+ * Content with no dedicated encoding falls back to Java serialization.
+ */
+final class PacketCodec {
+    // Java serialization streams start with 0xACED, so the first byte tells both formats apart
+    static final byte MAGIC = (byte) 0xB1;
+    static final byte VERSION = 1;
+
+    // Content tags
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte STRING = 4;
+    private static final byte NUMERIC_STRING = 5;
+    private static final byte INVOCATION = 6;
+    // 7 was the list of operations of the unchunked state transfer, no longer sent
+    private static final byte SERIALIZED = 8;
+    private static final byte BATCH = 9;
+    private static final byte READ = 10;
+    private static final byte STATE_CHUNK = 11;
+    private static final byte STATE_ACK = 12;
+    private static final byte HISTORY = 13;
+    private static final byte TYPED_INVOCATION = 14;
+
+    private PacketCodec() {}
+
+    /**
+     * @param payload - encoded packet
+     * @return - true if the payload uses the binary format
+     */
+    static boolean isBinary(byte[] payload) {
+        return payload.length > 0 && payload[0] == MAGIC;
+    }
+
+    /**
+     * Encodes a packet
+     * @param p - packet to be encoded
+     * @return - binary representation of the packet
+     */
+    static byte[] encode(Packet p) {
+        Writer w = new Writer(64);
+        w.writeByte(MAGIC);
+        w.writeByte(VERSION);
+        w.writeLong(p.getId());
+        w.writeVarInt(p.getWatermark());
+        w.writeValue(p.getContent());
+        return w.toByteArray();
+    }
+
+    /**
+     * Decodes a packet in the binary format
+     * @param payload - binary representation of the packet
+     * @return - decoded packet
+     * @throws IOException - if the payload is malformed
+     */
+    static Packet decode(byte[] payload) throws IOException {
+        Reader r = new Reader(payload);
+        if(r.readByte() != MAGIC || r.readByte() != VERSION)
+            throw new IOException("Unsupported packet format");
+
+        long id = r.readLong();
+        int watermark = r.readVarInt();
+        return new Packet(id, r.readValue(), watermark);
+    }
+
+    private static final class Writer {
+        private byte[] buf;
+        private int pos;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        private void ensure(int n) {
+            if(pos + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBytes(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for(int shift = 56; shift >= 0; shift -= 8)
+                buf[pos++] = (byte) (v >>> shift);
+        }
+
+        void writeVarInt(int v) {
+            ensure(5);
+            while((v & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeSignedVarInt(int v) {
+            writeVarInt((v << 1) ^ (v >> 31));
+        }
+
+        void writeSignedVarLong(long v) {
+            ensure(10);
+            v = (v << 1) ^ (v >> 63);
+            while((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeValue(Object o) {
+            if(o == null) {
+                writeByte(NULL);
+            } else if(o instanceof Boolean) {
+                writeByte((Boolean) o ? TRUE : FALSE);
+            } else if(o instanceof Integer) {
+                writeByte(INT);
+                writeSignedVarInt((Integer) o);
+            } else if(o instanceof String) {
+                writeString((String) o);
+            } else if(o instanceof Invocation && ((Invocation) o).getOpcode() != 0) {
+                writeInvocation((Invocation) o);
+            } else if(o instanceof Read && ((Read) o).getInvocation().getOpcode() != 0) {
+                writeByte(READ);
+                writeVarInt(((Read) o).getWatermark());
+                writeInvocation(((Read) o).getInvocation());
+            } else if(o instanceof StateChunk) {
+                writeStateChunk((StateChunk) o);
+            } else if(o instanceof StateAck) {
+                writeByte(STATE_ACK);
+                writeVarInt(((StateAck) o).getSeq());
+            } else if(o instanceof Batch) {
+                writeBatch((Batch) o);
+            } else if(o instanceof History) {
+                writeHistory((History) o);
+            } else {
+                writeSerialized(o);
+            }
+        }
+
+        void writeString(String s) {
+            if(isNumeric(s)) {
+                writeByte(NUMERIC_STRING);
+                writeSignedVarInt(Integer.parseInt(s));
+            } else {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                writeByte(STRING);
+                writeVarInt(b.length);
+                writeBytes(b);
+            }
+        }
+
+        void writeInvocation(Invocation i) {
+            if(i.isTyped()) {
+                writeByte(TYPED_INVOCATION);
+                writeByte(i.getOpcode());
+                for(int a = 0; a < i.getArity(); a++)
+                    writeSignedVarInt(i.getInt(a));
+                return;
+            }
+
+            Object[] args = i.getArgs();
+            writeByte(INVOCATION);
+            writeByte(i.getOpcode());
+            writeVarInt(args == null ? 0 : args.length);
+            if(args != null)
+                for(Object arg : args)
+                    writeValue(arg);
+        }
+
+        void writeBatch(Batch b) {
+            writeByte(BATCH);
+            writeVarInt(b.size());
+            for(int i = 0; i < b.size(); i++) {
+                writeLong(b.getId(i));
+                writeValue(b.getItem(i));
+            }
+        }
+
+        void writeHistory(History h) {
+            int[] rows = h.getRows();
+            long[] timestamps = h.getTimestamps();
+
+            writeByte(HISTORY);
+            writeVarInt(h.getAccount());
+            writeVarInt(timestamps.length);
+            for(int v : rows)
+                writeSignedVarInt(v);
+            long previous = 0;
+            for(long t : timestamps) {
+                writeSignedVarLong(t - previous);
+                previous = t;
+            }
+        }
+
+        void writeStateChunk(StateChunk c) {
+            int[] accounts = c.getAccounts();
+            int[] balances = c.getBalances();
+
+            writeByte(STATE_CHUNK);
+            writeVarInt(c.getSeq());
+            writeByte(c.isLast() ? TRUE : FALSE);
+            writeVarInt(c.getNext());
+            writeVarInt(accounts.length);
+            for(int i = 0; i < accounts.length; i++) {
+                writeVarInt(accounts[i]);
+                writeSignedVarInt(balances[i]);
+            }
+
+            int[] operations = c.getOperations();
+            writeVarInt(operations.length);
+            for(int v : operations)
+                writeSignedVarInt(v);
+
+            // Entries are grouped by client, so a sender is only written when it changes (null otherwise)
+            long[] requests = c.getRequests();
+            SocketAddress[] senders = c.getSenders();
+            writeVarInt(requests.length);
+            for(int i = 0; i < requests.length; i++) {
+                writeLong(requests[i]);
+                writeVarInt(c.getClocks()[i]);
+                writeValue(i > 0 && senders[i].equals(senders[i - 1]) ? null : senders[i]);
+                writeValue(c.getReplies()[i]);
+            }
+        }
+
+        void writeSerialized(Object o) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+                oos.writeObject(o);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            byte[] b = bos.toByteArray();
+            writeByte(SERIALIZED);
+            writeVarInt(b.length);
+            writeBytes(b);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        /**
+         * @return - true if the string is the canonical representation of an int (so it can be sent as a varint)
+         */
+        private static boolean isNumeric(String s) {
+            int n = s.length();
+            if(n == 0 || n > 11) return false;
+
+            int start = s.charAt(0) == '-' ? 1 : 0;
+            if(start == n) return false;
+            if(s.charAt(start) == '0' && n > start + 1) return false;
+            if(start == 1 && s.charAt(1) == '0') return false;
+
+            long v = 0;
+            for(int i = start; i < n; i++) {
+                char c = s.charAt(i);
+                if(c < '0' || c > '9') return false;
+                v = v * 10 + (c - '0');
+            }
+            if(start == 1) v = -v;
+
+            return v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE;
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        byte readByte() throws IOException {
+            if(pos >= buf.length)
+                throw new EOFException();
+            return buf[pos++];
+        }
+
+        long readLong() throws IOException {
+            long v = 0;
+            for(int i = 0; i < 8; i++)
+                v = (v << 8) | (readByte() & 0xFF);
+            return v;
+        }
+
+        int readVarInt() throws IOException {
+            int v = 0;
+            for(int shift = 0; shift < 35; shift += 7) {
+                byte b = readByte();
+                v |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0)
+                    return v;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readSignedVarInt() throws IOException {
+            int v = readVarInt();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readSignedVarLong() throws IOException {
+            long v = 0;
+            for(int shift = 0; shift < 70; shift += 7) {
+                byte b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0)
+                    return (v >>> 1) ^ -(v & 1);
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        byte[] readBytes() throws IOException {
+            int n = readVarInt();
+            if(n < 0 || pos + n > buf.length)
+                throw new EOFException();
+            byte[] b = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return b;
+        }
+
+        Object readValue() throws IOException {
+            byte tag = readByte();
+            switch(tag) {
+                case NULL:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case INT:
+                    return readSignedVarInt();
+                case STRING:
+                case NUMERIC_STRING:
+                    return readString(tag);
+                case INVOCATION:
+                    return readInvocation();
+                case TYPED_INVOCATION:
+                    return readTypedInvocation();
+                case SERIALIZED:
+                    return readSerialized();
+                case BATCH:
+                    return readBatch();
+                case STATE_CHUNK:
+                    return readStateChunk();
+                case STATE_ACK:
+                    return new StateAck(readVarInt());
+                case HISTORY:
+                    return readHistory();
+                case READ: {
+                    int watermark = readVarInt();
+                    byte form = readByte();
+                    if(form == TYPED_INVOCATION)
+                        return new Read(readTypedInvocation(), watermark);
+                    if(form != INVOCATION)
+                        throw new IOException("Malformed read");
+                    return new Read(readInvocation(), watermark);
+                }
+                default:
+                    throw new IOException("Unknown content tag " + tag);
+            }
+        }
+
+        String readString(byte tag) throws IOException {
+            if(tag == NUMERIC_STRING)
+                return Integer.toString(readSignedVarInt());
+            if(tag == STRING)
+                return new String(readBytes(), StandardCharsets.UTF_8);
+            throw new IOException("Expected a string, got tag " + tag);
+        }
+
+        Invocation readInvocation() throws IOException {
+            String command = Invocation.commandOf(readByte());
+            if(command == null)
+                throw new IOException("Unknown opcode");
+
+            Object[] args = new Object[readVarInt()];
+            for(int i = 0; i < args.length; i++)
+                args[i] = readValue();
+
+            return new Invocation(command, args);
+        }
+
+        Invocation readTypedInvocation() throws IOException {
+            byte opcode = readByte();
+            int arity = Invocation.arityOf(opcode);
+            if(arity < 0)
+                throw new IOException("Unknown typed opcode");
+
+            int a = arity > 0 ? readSignedVarInt() : 0;
+            int b = arity > 1 ? readSignedVarInt() : 0;
+            int c = arity > 2 ? readSignedVarInt() : 0;
+            return Invocation.typed(opcode, a, b, c);
+        }
+
+        Batch readBatch() throws IOException {
+            int n = readVarInt();
+            long[] ids = new long[n];
+            Object[] items = new Object[n];
+            for(int i = 0; i < n; i++) {
+                ids[i] = readLong();
+                items[i] = readValue();
+            }
+            return new Batch(ids, items);
+        }
+
+        History readHistory() throws IOException {
+            int account = readVarInt();
+            int n = readVarInt();
+            int[] rows = new int[n * History.WIDTH];
+            for(int i = 0; i < rows.length; i++)
+                rows[i] = readSignedVarInt();
+            long[] timestamps = new long[n];
+            long previous = 0;
+            for(int i = 0; i < n; i++)
+                timestamps[i] = previous += readSignedVarLong();
+            return new History(account, rows, timestamps);
+        }
+
+        StateChunk readStateChunk() throws IOException {
+            int seq = readVarInt();
+            boolean last = readByte() == TRUE;
+            int next = readVarInt();
+            int n = readVarInt();
+            int[] accounts = new int[n];
+            int[] balances = new int[n];
+            for(int i = 0; i < n; i++) {
+                accounts[i] = readVarInt();
+                balances[i] = readSignedVarInt();
+            }
+
+            int[] operations = new int[readVarInt()];
+            for(int i = 0; i < operations.length; i++)
+                operations[i] = readSignedVarInt();
+            StateChunk c = new StateChunk(seq, accounts, balances, operations, last, next);
+
+            int r = readVarInt();
+            if(r > 0) {
+                long[] requests = new long[r];
+                SocketAddress[] senders = new SocketAddress[r];
+                Object[] replies = new Object[r];
+                int[] clocks = new int[r];
+                for(int i = 0; i < r; i++) {
+                    requests[i] = readLong();
+                    clocks[i] = readVarInt();
+                    Object sender = readValue();
+                    senders[i] = sender == null ? senders[i - 1] : (SocketAddress) sender;
+                    replies[i] = readValue();
+                }
+                c.setReplies(requests, senders, replies, clocks);
+            }
+            return c;
+        }
+
+        Object readSerialized() throws IOException {
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes()))) {
+                return ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
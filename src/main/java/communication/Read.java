@@ -0,0 +1,37 @@
+package communication;
+
+import java.io.Serializable;
+
+/**
+ * Read-only invocation sent point-to-point to a single replica, outside of the total order.
+ * The replica only executes it once it has applied every operation up to the given watermark
+ * (see Packet.getWatermark), so that the read reflects the writes the client has already seen.
+ */
+public class Read implements Serializable {
+    private Invocation invocation;
+    private int watermark;
+
+    /**
+     * Creates a read of the given invocation
+     * @param invocation - read-only invocation to be executed
+     * @param watermark - operation id the replica must have reached before executing it. 0 if none
+     */
+    public Read(Invocation invocation, int watermark) {
+        this.invocation = invocation;
+        this.watermark = watermark;
+    }
+
+    /**
+     * @return - invocation to be executed
+     */
+    public Invocation getInvocation() {
+        return invocation;
+    }
+
+    /**
+     * @return - operation id the replica must have reached before executing the read
+     */
+    public int getWatermark() {
+        return watermark;
+    }
+}
@@ -0,0 +1,25 @@
+package communication;
+
+import java.io.Serializable;
+
+/**
+ * Acknowledgement of a StateChunk, sent by the recovering replica once the chunk is applied.
+ * Lets the donor send another chunk.
+ */
+public class StateAck implements Serializable {
+    private int seq;
+
+    /**
+     * @param seq - sequence number of the applied chunk
+     */
+    public StateAck(int seq) {
+        this.seq = seq;
+    }
+
+    /**
+     * @return - sequence number of the applied chunk
+     */
+    public int getSeq() {
+        return seq;
+    }
+}
@@ -0,0 +1,140 @@
+package communication;
+
+import java.io.Serializable;
+import java.net.SocketAddress;
+
+/**
+ * Part of the state sent to a recovering replica, point-to-point.
+ * A transfer starts with snapshot chunks, holding the balance of every account changed since the
+ * replica's last operation, followed by log chunks holding the missing operations in ascending order.
+ * Operations are sent as flat int rows, laid out as read by data.OperationCursor.
+ * Log chunks also carry the donor's next operation id, since ids left unused by failed writes can't be
+ * told from the log. The last chunk carries the donor's reply cache, the results of the clients' latest writes.
+ * Every chunk must be acknowledged (see StateAck) for the donor to keep sending.
+ */
+public class StateChunk implements Serializable {
+    private int seq;
+    private int[] accounts;
+    private int[] balances;
+    private int[] operations;
+    private boolean last;
+    private int next;
+    private long[] requests = new long[0];
+    private SocketAddress[] senders = new SocketAddress[0];
+    private Object[] replies = new Object[0];
+    private int[] clocks = new int[0];
+
+    /**
+     * Creates a snapshot chunk
+     * @param seq - chunk sequence number, starting at 0
+     * @param accounts - account ids
+     * @param balances - balance of each account
+     */
+    public StateChunk(int seq, int[] accounts, int[] balances) {
+        this(seq, accounts, balances, new int[0], false, 0);
+    }
+
+    /**
+     * Creates a log chunk
+     * @param seq - chunk sequence number, starting at 0
+     * @param operations - operation rows, in ascending id order
+     * @param last - true if this is the last chunk of the transfer
+     * @param next - next operation id of the donor
+     */
+    public StateChunk(int seq, int[] operations, boolean last, int next) {
+        this(seq, new int[0], new int[0], operations, last, next);
+    }
+
+    StateChunk(int seq, int[] accounts, int[] balances, int[] operations, boolean last, int next) {
+        this.seq = seq;
+        this.accounts = accounts;
+        this.balances = balances;
+        this.operations = operations;
+        this.last = last;
+        this.next = next;
+    }
+
+    /**
+     * Attaches the donor's reply cache to the chunk
+     * @param requests - ids of the requests
+     * @param senders - address each request came from
+     * @param replies - result of each request
+     * @param clocks - next operation id when the client of each request was last active
+     */
+    public void setReplies(long[] requests, SocketAddress[] senders, Object[] replies, int[] clocks) {
+        this.requests = requests;
+        this.senders = senders;
+        this.replies = replies;
+        this.clocks = clocks;
+    }
+
+    /**
+     * @return - chunk sequence number
+     */
+    public int getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return - ids of the accounts in the snapshot chunk
+     */
+    public int[] getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * @return - balance of each account in the snapshot chunk
+     */
+    public int[] getBalances() {
+        return balances;
+    }
+
+    /**
+     * @return - operation rows in the log chunk
+     */
+    public int[] getOperations() {
+        return operations;
+    }
+
+    /**
+     * @return - true if this is the last chunk of the transfer
+     */
+    public boolean isLast() {
+        return last;
+    }
+
+    /**
+     * @return - next operation id of the donor, in log chunks
+     */
+    public int getNext() {
+        return next;
+    }
+
+    /**
+     * @return - ids of the requests in the reply cache
+     */
+    public long[] getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return - address each request in the reply cache came from
+     */
+    public SocketAddress[] getSenders() {
+        return senders;
+    }
+
+    /**
+     * @return - result of each request in the reply cache
+     */
+    public Object[] getReplies() {
+        return replies;
+    }
+
+    /**
+     * @return - next operation id when the client of each request was last active
+     */
+    public int[] getClocks() {
+        return clocks;
+    }
+}
@@ -0,0 +1,215 @@
+package data;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * In-memory association between account ids and their balances.
+ * Ids and balances are kept as primitive ints, side by side in a single open addressing
+ * (linear probing) table, so that reading or updating a balance allocates nothing.
+ * Reads are optimistic and never block, unless they overlap with a write.
+ * Account ids must not be negative.
+ */
+public class BalanceStore {
+    // Returned when the account isn't in the store
+    public static final int MISSING = Integer.MIN_VALUE;
+
+    private static final int FREE = -1;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int MIN_CAPACITY = 16;
+
+    private final StampedLock lock = new StampedLock();
+
+    // Lookups that found the account, and those that didn't (and went to the database)
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // table[2*i] holds the account id of slot i (FREE if unused), table[2*i+1] its balance
+    private int[] table;
+    private int size;
+    private int threshold;
+
+    /**
+     * Creates a store sized for the given number of accounts. It grows as needed.
+     * @param expected - expected number of accounts
+     */
+    public BalanceStore(int expected) {
+        allocate(capacityFor(expected));
+    }
+
+    /**
+     * Returns the balance of the given account
+     * @param account - account id
+     * @return - account balance or MISSING if the account isn't in the store
+     */
+    public int get(int account) {
+        long stamp = lock.tryOptimisticRead();
+        int balance = find(table, account);
+
+        if(!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                balance = find(table, account);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        if(balance == MISSING)
+            misses.increment();
+        else
+            hits.increment();
+        return balance;
+    }
+
+    /**
+     * @param account - account id
+     * @return - true if the account is in the store
+     */
+    public boolean contains(int account) {
+        return get(account) != MISSING;
+    }
+
+    /**
+     * Sets the balance of the given account, adding it to the store if needed
+     * @param account - account id
+     * @param balance - new balance
+     */
+    public void put(int account, int balance) {
+        long stamp = lock.writeLock();
+        try {
+            int i = slot(table, account);
+            if(table[i] == FREE) {
+                if(size >= threshold) {
+                    resize();
+                    i = slot(table, account);
+                }
+                table[i] = account;
+                size++;
+            }
+            table[i + 1] = balance;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds an account to the store, unless it is already there
+     * @param account - account id
+     * @param balance - balance of the account, if added
+     * @return - balance of the account in the store
+     */
+    public int putIfAbsent(int account, int balance) {
+        long stamp = lock.writeLock();
+        try {
+            int i = slot(table, account);
+            if(table[i] != FREE)
+                return table[i + 1];
+            if(size >= threshold) {
+                resize();
+                i = slot(table, account);
+            }
+            table[i] = account;
+            table[i + 1] = balance;
+            size++;
+            return balance;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return - number of accounts in the store
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return - number of lookups that found the account
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return - number of lookups that didn't find the account
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return - approximate heap used by the store, in bytes
+     */
+    public long footprint() {
+        long stamp = lock.readLock();
+        try {
+            return 16 + 4L * table.length;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("Balances: ")
+                .append(size()).append(" accounts, ")
+                .append(footprint() / 1024).append("KB, ")
+                .append(getHits()).append(" hits, ")
+                .append(getMisses()).append(" misses")
+                .toString();
+    }
+
+    private static int find(int[] t, int account) {
+        int i = slot(t, account);
+        return t[i] == FREE ? MISSING : t[i + 1];
+    }
+
+    /**
+     * Returns the index of the slot holding the account, or of the free slot where it should be added
+     */
+    private static int slot(int[] t, int account) {
+        int mask = (t.length >> 1) - 1;
+        int h = account * 0x9E3779B9;
+        int i = (h ^ (h >>> 16)) & mask;
+
+        while(t[2 * i] != FREE && t[2 * i] != account)
+            i = (i + 1) & mask;
+
+        return 2 * i;
+    }
+
+    private void resize() {
+        int[] old = table;
+        allocate(old.length);
+
+        for(int i = 0; i < old.length; i += 2) {
+            if(old[i] != FREE) {
+                int j = slot(table, old[i]);
+                table[j] = old[i];
+                table[j + 1] = old[i + 1];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        int[] t = new int[2 * capacity];
+        for(int i = 0; i < t.length; i += 2)
+            t[i] = FREE;
+        table = t;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int capacityFor(int expected) {
+        int capacity = MIN_CAPACITY;
+        while(capacity * LOAD_FACTOR < expected)
+            capacity <<= 1;
+        return capacity;
+    }
+}
@@ -1,29 +1,52 @@
 package data;
 
-import java.util.HashMap;
-import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by frm on 18/04/16.
+ * Bounded cache of Cacheable objects, indexed by their id.
+ * The cache is split into segments, each guarded by its own lock, so that
+ * lookups of different ids rarely contend with each other.
+ * Every segment evicts using the CLOCK policy (an approximation of LRU):
+ * both get and add run in constant time and allocate nothing.
  */
 public class CacheManager<T extends Cacheable>{
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 64;
+
     private final int maxSize;
-    private HashMap<Integer, CacheObject> cache;
-    private PriorityQueue<CacheObject> queue;
-    private ReentrantLock lock;
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
 
     /**
      * Creates a CacheManager with the given maximum size.
      * Any entry added after reaching the maximum size will cause
-     * for the oldest entry to be removed.
+     * for a least recently used entry to be removed.
      * @param size
      */
     public CacheManager(int size) {
+        this(size, defaultSegments(size));
+    }
+
+    /**
+     * Creates a CacheManager with the given maximum size, split into the given number of segments.
+     * @param size - maximum number of cached objects
+     * @param nrSegments - number of independently locked segments. Rounded down to a power of two
+     */
+    public CacheManager(int size, int nrSegments) {
+        int n = Integer.highestOneBit(Math.max(1, Math.min(nrSegments, size)));
         maxSize = size;
-        cache = new HashMap<>();
-        queue = new PriorityQueue<>();
-        lock = new ReentrantLock();
+        segments = new Segment[n];
+        segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+
+        // Spreads the remainder over the first segments, so that the sizes add up to the maximum size
+        for(int i = 0; i < n; i++)
+            segments[i] = new Segment(size / n + (i < size % n ? 1 : 0));
     }
 
     /**
@@ -32,100 +55,226 @@ public class CacheManager<T extends Cacheable>{
      * @param id - id of the object to search for
      * @return - queried object or null
      */
+    @SuppressWarnings("unchecked")
     public T get(int id) {
-        lock.lock();
-        CacheObject o = cache.get(id);
-        lock.unlock();
-        T t = o == null ? null : (T) o.touch().getContent();
-
-        if(o != null) {
-            // Reordering the priority queue.
-            // It's ok to remove after updating the object,
-            // as it won't affect the search for the object.
-            // The removal criteria will be the result of equals.
-            // Since there is no override, it will use the object id.
-            lock.lock();
-            queue.remove(o);
-            queue.add(o);
-            lock.unlock();
-        }
+        int h = hash(id);
+        Object o = segmentFor(h).get(id, h);
+
+        if(o == null)
+            misses.increment();
+        else
+            hits.increment();
 
-        return t;
+        return (T) o;
     }
 
     /**
-     * Adds a given object to the cache
+     * Adds a given object to the cache, replacing any object with the same id
      * @param o - object to be cached
      */
     public void add(T o) {
-        lock.lock();
-        if(maxSize == cache.size()) {
-            int targetId = ((T)queue.poll().getContent()).getId();
-            cache.remove(targetId);
-        }
+        int id = o.getId();
+        int h = hash(id);
+        if(segmentFor(h).put(id, h, o))
+            evictions.increment();
+    }
 
-        CacheObject co = new CacheObject(o);
-        cache.put(o.getId(), co);
-        queue.add(co);
-        lock.unlock();
+    /**
+     * @return - number of cached objects
+     */
+    public int size() {
+        int size = 0;
+        for(Segment s : segments)
+            size += s.size();
+        return size;
     }
 
     /**
-     * Class that wraps the its content allowing it to be compared using a timestamp
-     * Timestamps allow for the object to be organized using a queue,
-     * so that the oldest object in cache is removed
+     * @return - maximum number of cached objects
      */
-    static class CacheObject implements Comparable<CacheObject> {
-        private Object object;
-        private Long timestamp;
-        private Long lastAccessed;
+    public int getMaxSize() {
+        return maxSize;
+    }
 
-        private static double TIME_WEIGHT = 0.7;
-        private static double ACCESS_WEIGHT = 0.3;
+    /**
+     * @return - number of lookups that found the object
+     */
+    public long getHits() {
+        return hits.sum();
+    }
 
-        /**
-         * Creates a CacheObject that wraps the given object
-         * @param o - object to be wrapped
-         */
-        public CacheObject(Object o) {
-            this.object = o;
-            this.timestamp = System.currentTimeMillis();
-            this.lastAccessed = timestamp;
+    /**
+     * @return - number of lookups that didn't find the object
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return - number of objects removed to make room for new ones
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return - fraction of lookups that found the object
+     */
+    public double getHitRatio() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("Cache: ")
+                .append(size()).append("/").append(maxSize).append(" entries, ")
+                .append(getHits()).append(" hits, ")
+                .append(getMisses()).append(" misses, ")
+                .append(getEvictions()).append(" evictions, ")
+                .append(String.format("%.2f", getHitRatio() * 100)).append("% hit ratio")
+                .toString();
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private static int hash(int id) {
+        return id * 0x9E3779B9;
+    }
+
+    private static int defaultSegments(int size) {
+        return Math.max(1, Math.min(MAX_SEGMENTS, size / MIN_SEGMENT_SIZE));
+    }
+
+    /**
+     * Fixed capacity part of the cache.
+     * Entries live in slots, visited in a circle by the clock hand when looking for an entry to evict.
+     * Accessed entries get a second chance, being skipped (and unmarked) the next time the hand passes by.
+     * Ids are mapped to slots by an open addressing (linear probing) index.
+     */
+    private static class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int capacity;
+
+        // Slots
+        private final int[] ids;
+        private final Object[] values;
+        private final boolean[] referenced;
+        private int count;
+        private int hand;
+
+        // Index: slot + 1 for each used position, 0 if free
+        private final int[] index;
+        private final int indexMask;
+
+        Segment(int capacity) {
+            this.capacity = Math.max(1, capacity);
+            ids = new int[this.capacity];
+            values = new Object[this.capacity];
+            referenced = new boolean[this.capacity];
+
+            int indexSize = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+            index = new int[indexSize];
+            indexMask = indexSize - 1;
         }
 
-        /**
-         * Updates the object access timestamp
-         * Returns itself to allow for method chaining
-         * @return own object
-         */
-        public CacheObject touch() {
-            this.lastAccessed = System.currentTimeMillis();
-            return this;
+        Object get(int id, int hash) {
+            lock.lock();
+            try {
+                int slot = find(id, hash);
+                if(slot < 0) return null;
+                referenced[slot] = true;
+                return values[slot];
+            } finally {
+                lock.unlock();
+            }
         }
 
         /**
-         * Returns the wrapped object
-         * @return - wrapped object
+         * @return - true if an entry was evicted to make room for the new one
          */
-        public Object getContent() {
-            return object;
+        boolean put(int id, int hash, Object value) {
+            lock.lock();
+            try {
+                int slot = find(id, hash);
+                if(slot >= 0) {
+                    values[slot] = value;
+                    referenced[slot] = true;
+                    return false;
+                }
+
+                boolean evicted = false;
+                if(count < capacity) {
+                    slot = count++;
+                } else {
+                    while(referenced[hand]) {
+                        referenced[hand] = false;
+                        hand = (hand + 1) % capacity;
+                    }
+                    slot = hand;
+                    hand = (hand + 1) % capacity;
+                    unindex(ids[slot]);
+                    evicted = true;
+                }
+
+                ids[slot] = id;
+                values[slot] = value;
+                referenced[slot] = false;
+
+                int i = position(hash);
+                while(index[i] != 0)
+                    i = (i + 1) & indexMask;
+                index[i] = slot + 1;
+
+                return evicted;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int position(int hash) {
+            return (hash ^ (hash >>> 16)) & indexMask;
+        }
+
+        private int find(int id, int hash) {
+            for(int i = position(hash); index[i] != 0; i = (i + 1) & indexMask) {
+                int slot = index[i] - 1;
+                if(ids[slot] == id) return slot;
+            }
+            return -1;
         }
 
         /**
-         * Calculates the overall weight.
-         * Amounts for weights on last access and creation timestamps
-         * @return - weight factor
+         * Removes an id from the index, shifting back the entries of its probe sequence
          */
-        private Double weightFactor() {
-            return ACCESS_WEIGHT * lastAccessed + TIME_WEIGHT * timestamp;
-        }
+        private void unindex(int id) {
+            int i = position(hash(id));
+            while(ids[index[i] - 1] != id)
+                i = (i + 1) & indexMask;
+            index[i] = 0;
 
-        @Override
-        public int compareTo(CacheObject co) {
-            // This comparison version accounts for temporal locality.
-            // It's just to allow to take advantage of this property
-            // in a very, very simple way, as this wasn't really the point of the project.
-            return Double.compare(weightFactor(), co.weightFactor());
+            for(int j = (i + 1) & indexMask; index[j] != 0; j = (j + 1) & indexMask) {
+                int home = position(hash(ids[index[j] - 1]));
+                // The entry at j may only move back to i if its home isn't cyclically within (i, j]
+                boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if(!stays) {
+                    index[i] = index[j];
+                    index[j] = 0;
+                    i = j;
+                }
+            }
         }
     }
 }
@@ -0,0 +1,228 @@
+package data;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size pool of database connections.
+ * Every pooled connection keeps its own prepared statement cache, so that
+ * the hot queries are only prepared once per connection.
+ * Connections are borrowed and must always be released back to the pool.
+ * A thread may also pin a connection of its own, opened outside of the pool, which its borrows then return.
+ */
+public class ConnectionPool {
+    private final DataSource source;
+    private final BlockingQueue<PooledConnection> idle;
+    private final Map<Connection, PooledConnection> pooled;
+    private final ThreadLocal<PooledConnection> pinned = new ThreadLocal<>();
+
+    // Pool metrics
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Creates a pool with the given number of connections to the data source.
+     * All connections are opened eagerly.
+     * @param source - data source to get connections from
+     * @param size - number of connections in the pool
+     * @throws SQLException
+     */
+    public ConnectionPool(DataSource source, int size) throws SQLException {
+        this.source = source;
+        idle = new ArrayBlockingQueue<>(size);
+        pooled = new ConcurrentHashMap<>();
+
+        for(int i = 0; i < size; i++) {
+            PooledConnection pc = new PooledConnection(source.getConnection());
+            pooled.put(pc.getConnection(), pc);
+            idle.add(pc);
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool, waiting for one to be released if none is available.
+     * @return - borrowed connection
+     * @throws SQLException - if interrupted while waiting for a connection
+     */
+    public PooledConnection borrow() throws SQLException {
+        PooledConnection own = pinned.get();
+        if(own != null)
+            return own;
+
+        long start = System.nanoTime();
+        PooledConnection pc = idle.poll();
+
+        if(pc == null) {
+            try {
+                pc = idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection", e);
+            }
+        }
+
+        long waited = System.nanoTime() - start;
+        borrows.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        if(waited > maxWaitNanos.get())
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+        inUse.incrementAndGet();
+
+        return pc;
+    }
+
+    /**
+     * Returns a borrowed connection to the pool
+     * @param pc - connection to be released
+     */
+    public void release(PooledConnection pc) {
+        if(pc == null || pc == pinned.get()) return;
+        inUse.decrementAndGet();
+        idle.add(pc);
+    }
+
+    /**
+     * Opens a connection dedicated to the current thread. From then on, the thread's borrows return it
+     * without waiting and its releases leave it pinned, so the thread must not hold two connections at once.
+     * @throws SQLException
+     */
+    public void pin() throws SQLException {
+        if(pinned.get() != null)
+            return;
+        PooledConnection pc = new PooledConnection(source.getConnection());
+        pooled.put(pc.getConnection(), pc);
+        pinned.set(pc);
+    }
+
+    /**
+     * Returns the pooled wrapper of a connection borrowed from this pool
+     * @param con - raw connection
+     * @return - pooled connection, or null if the connection doesn't belong to the pool
+     */
+    public PooledConnection get(Connection con) {
+        return pooled.get(con);
+    }
+
+    /**
+     * Closes every connection and its cached statements
+     */
+    public void close() {
+        for(PooledConnection pc : pooled.values())
+            pc.close();
+        pooled.clear();
+        idle.clear();
+    }
+
+    /**
+     * @return - number of connections currently borrowed
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @return - total number of borrows
+     */
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    /**
+     * @return - total number of statements taken from the caches (one per execution of a hot query)
+     * by the connections currently open. Only exact while no connection is borrowed
+     */
+    public long getStatements() {
+        long n = 0;
+        for(PooledConnection pc : pooled.values())
+            n += pc.uses;
+        return n;
+    }
+
+    /**
+     * @return - average time waited for a connection, in microseconds
+     */
+    public double getAverageWaitMicros() {
+        long n = borrows.get();
+        return n == 0 ? 0 : (waitNanos.get() / 1000.0) / n;
+    }
+
+    /**
+     * @return - longest time waited for a connection, in microseconds
+     */
+    public long getMaxWaitMicros() {
+        return maxWaitNanos.get() / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("Pool: ")
+                .append(pooled.size()).append(" connections, ")
+                .append(getInUse()).append(" in use, ")
+                .append(getBorrows()).append(" borrows, ")
+                .append(getStatements()).append(" statements, ")
+                .append(String.format("%.2f", getAverageWaitMicros())).append("us avg wait, ")
+                .append(getMaxWaitMicros()).append("us max wait")
+                .toString();
+    }
+
+    /**
+     * Connection owned by the pool, caching the statements prepared on it.
+     * Should only be used by one thread at a time, between borrow and release.
+     */
+    public static class PooledConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+        // Statements taken from the cache. A plain field, since only the borrowing thread updates it
+        private long uses;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.statements = new HashMap<>();
+        }
+
+        /**
+         * @return - underlying connection
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Returns the cached statement for the given query, preparing it on first use
+         * @param sql - query to prepare
+         * @return - prepared statement bound to this connection
+         * @throws SQLException
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            uses++;
+            PreparedStatement stmt = statements.get(sql);
+            if(stmt == null) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            }
+            return stmt;
+        }
+
+        private void close() {
+            try {
+                for(PreparedStatement stmt : statements.values())
+                    stmt.close();
+                statements.clear();
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -3,23 +3,91 @@ package data;
 import java.io.File;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import bank.*;
+import data.ConnectionPool.PooledConnection;
 import org.apache.derby.jdbc.EmbeddedDataSource;
 
 public class DataAccess {
     EmbeddedDataSource rawDataSource;
+    private String dbName;
+    private ConnectionPool pool;
 
     private static final String DB_PATH = "./src/main/resources/db";
     private static final String DB_FILENAME = "BankData";
+    private static final int POOL_SIZE = 8;
+    // Initial size of the in-memory balances, which grow as needed. bank.cache.size, the size of the bounded
+    // account cache they replaced, is still read as a fallback
+    private static final int EXPECTED_ACCOUNTS =
+            Integer.getInteger("bank.accounts.expected", Integer.getInteger("bank.cache.size", 1024));
+
+    // Passed instead of a reserved id to take the next one
+    public static final int NEXT_ID = -1;
+
+    // Balance returned by balanceOf when the account doesn't exist
+    public static final int NO_ACCOUNT = BalanceStore.MISSING;
+
+    // Hot queries, prepared once per pooled connection
+    static final String INSERT_MOVEMENT = "insert into OPERATIONS (OP_ID, OP_TYPE, MV_AMOUNT, FROM_ACCOUNT_ID, " +
+            "FROM_CURRENT_BALANCE, TIMESTAMP) values (?,?,?,?,?,?)";
+    static final String INSERT_TRANSFER = "insert into OPERATIONS (OP_ID, OP_TYPE, MV_AMOUNT, FROM_ACCOUNT_ID, " +
+            "TO_ACCOUNT_ID, FROM_CURRENT_BALANCE, TO_CURRENT_BALANCE, TIMESTAMP) values (?,?,?,?,?,?,?,?)";
+    static final String INSERT_CREATE = "insert into OPERATIONS (OP_ID, OP_TYPE, FROM_ACCOUNT_ID, " +
+            "FROM_CURRENT_BALANCE, TIMESTAMP) values (?,?,?,?,?)";
+    static final String INSERT_ACCOUNT = "insert into ACCOUNTS (ACCOUNT_ID, BALANCE, TIMESTAMP) values (?,?,?)";
+    static final String UPDATE_BALANCE = "update ACCOUNTS set BALANCE = ? where ACCOUNT_ID = ?";
+    static final String ADD_BALANCE = "update ACCOUNTS set BALANCE = BALANCE + ? where ACCOUNT_ID = ? and BALANCE >= ?";
+    static final String SELECT_BALANCE = "SELECT BALANCE FROM ACCOUNTS WHERE ACCOUNT_ID = ?";
+    static final String SELECT_LAST_OPERATIONS_FROM = "SELECT * FROM OPERATIONS where FROM_ACCOUNT_ID = ? " +
+            "ORDER BY OP_ID DESC FETCH FIRST ? ROWS ONLY";
+    static final String SELECT_LAST_OPERATIONS_TO = "SELECT * FROM OPERATIONS where TO_ACCOUNT_ID = ? " +
+            "ORDER BY OP_ID DESC FETCH FIRST ? ROWS ONLY";
+    static final String SELECT_OPERATIONS_ASC = "SELECT OP_TYPE, OP_ID, MV_AMOUNT, FROM_ACCOUNT_ID, TO_ACCOUNT_ID, " +
+            "FROM_CURRENT_BALANCE, TO_CURRENT_BALANCE FROM OPERATIONS WHERE OP_ID >= ? AND OP_ID < ? ORDER BY OP_ID ASC";
+    static final String SELECT_OPERATIONS_DESC = "SELECT OP_TYPE, OP_ID, MV_AMOUNT, FROM_ACCOUNT_ID, TO_ACCOUNT_ID, " +
+            "FROM_CURRENT_BALANCE, TO_CURRENT_BALANCE FROM OPERATIONS WHERE OP_ID >= ? AND OP_ID < ? ORDER BY OP_ID DESC";
+    static final String SELECT_METADATA = "SELECT VAL FROM METADATA WHERE NAME = ?";
+    static final String UPDATE_METADATA = "update METADATA set VAL = ? where NAME = ?";
+    static final String INSERT_METADATA = "insert into METADATA (NAME, VAL) values (?,?)";
+    static final String DELETE_METADATA = "delete from METADATA where NAME = ?";
+    static final String DELETE_OPERATIONS_FROM = "delete from OPERATIONS where OP_ID >= ?";
+    static final String SELECT_MAX_ACCOUNT_ID = "SELECT MAX(ACCOUNT_ID) FROM ACCOUNTS";
+    static final String SELECT_MAX_OPERATION_ID = "SELECT MAX(OP_ID) FROM OPERATIONS";
+
+    // Metadata entries
+    // First operation a recovering replica was missing, present while a recovery is in progress
+    public static final String RECOVERY_FROM = "RECOVERY_FROM";
+    // First operation still missing from the log of a recovering replica
+    public static final String RECOVERY_LOG = "RECOVERY_LOG";
+    // Next operation id of a replica that was shut down cleanly, present until it is started again
+    public static final String CHECKPOINT = "CHECKPOINT";
 
     public enum OP_TYPES {MOVEMENT, TRANSFER, CREATE};
-    private int currentAccountId, currentOperationId;
+    // Next ids to be used. Assigned under the locks, so that ids reach the log in order, but readable without them
+    private final AtomicInteger currentAccountId = new AtomicInteger(1);
+    private final AtomicInteger currentOperationId = new AtomicInteger(1);
     private static ReentrantLock accountLock = new ReentrantLock();
     private static ReentrantLock operationLock = new ReentrantLock();
-    private CacheManager<Account> cache;
+    private BalanceStore balances;
+    private GroupCommit groupCommit;
+    // Set once a group commit write can't be committed, and called then
+    private volatile boolean writeFailed;
+    private volatile Runnable writeFailure;
+    // Last operations of recently queried accounts, along with the number of operations recorded so far.
+    // Writers record their operations concurrently, holding the shared side of the history lock (buffers are
+    // synchronized on their own); buffers filled from the database hold the exclusive side, so that no
+    // operation is recorded between checking that the rows read are still current and caching them
+    private final HistoryCache history = HistoryCache.DEPTH > 0 ? new HistoryCache() : null;
+    private final ReentrantReadWriteLock historyLock = new ReentrantReadWriteLock();
+    private final AtomicLong recorded = new AtomicLong();
+    private RecoveryApplier recoveryApplier;
+    private boolean inMemory;
 
     /**
      * Initiates database connection, creating it if it doesn't exist already.
@@ -28,7 +96,7 @@ public class DataAccess {
      */
     public void initEDBConnection(String name) throws SQLException {
         String dbName = buildDBName(name);
-        cache = new CacheManager<>(1024);
+        balances = new BalanceStore(EXPECTED_ACCOUNTS);
         File f = new File(dbName);
 
         if (!f.exists())
@@ -46,23 +114,61 @@ public class DataAccess {
         createAccountsTable();
         createOperationTypeTable();
         createOperationsTable();
+        createOperationIndexes();
+        createMetadataTable();
+    }
+
+    /**
+     * Creates the tables added after the database was created
+     * @throws SQLException
+     */
+    private void migrateTables() throws SQLException {
+        if(!hasTable("METADATA"))
+            createMetadataTable();
+        if(!hasIndex("OPERATIONS", "OPERATIONS_FROM_IDX"))
+            createOperationIndexes();
+    }
+
+    private boolean hasTable(String tablename) throws SQLException {
+        PooledConnection pc = pool.borrow();
+        try (ResultSet res = pc.getConnection().getMetaData().getTables(null, "APP", tablename, null)) {
+            return res.next();
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    private boolean hasIndex(String tablename, String indexname) throws SQLException {
+        PooledConnection pc = pool.borrow();
+        try (ResultSet res = pc.getConnection().getMetaData().getIndexInfo(null, "APP", tablename, false, true)) {
+            while(res.next())
+                if(indexname.equals(res.getString("INDEX_NAME")))
+                    return true;
+            return false;
+        } finally {
+            pool.release(pc);
+        }
     }
 
     private void dropTables() throws SQLException {
+        dropTable("METADATA");
         dropTable("OPERATIONS");
         dropTable("ACCOUNTS");
         dropTable("OPERATION_TYPE");
     }
 
-    private void connectTo(String dbName, boolean create) {
+    private void connectTo(String dbName, boolean create) throws SQLException {
+        this.dbName = dbName;
         rawDataSource = new EmbeddedDataSource();
         rawDataSource.setDatabaseName(dbName);
         if(create)
             rawDataSource.setCreateDatabase("create");
+        pool = new ConnectionPool(rawDataSource, POOL_SIZE);
     }
 
-    private void connectDB(String dbName) {
+    private void connectDB(String dbName) throws SQLException {
         connectTo(dbName, false);
+        migrateTables();
     }
 
     private void createDB(String dbName) throws SQLException {
@@ -100,18 +206,177 @@ public class DataAccess {
     }
 
     /**
-     * Returns a connection to the instantiated database
+     * Borrows a connection to the instantiated database from the connection pool.
+     * It must be given back with releaseTransactionConnection.
      * @return database connection
      */
     public Connection getTransactionConnection(){
         try {
-            return rawDataSource.getConnection();
+            return pool.borrow().getConnection();
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Gives a connection obtained with getTransactionConnection back to the connection pool
+     * @param con connection to be released
+     */
+    public void releaseTransactionConnection(Connection con){
+        if(con != null)
+            pool.release(pool.get(con));
+    }
+
+    /**
+     * Returns the cached prepared statement for the given query on a pooled connection
+     * @param sql query to be prepared
+     * @param con pooled connection
+     * @return prepared statement
+     * @throws SQLException
+     */
+    private PreparedStatement prepare(String sql, Connection con) throws SQLException {
+        return pool.get(con).prepare(sql);
+    }
+
+    /**
+     * Enables the group commit write path. Operation logs and balance updates are no longer committed one by one,
+     * but appended to a batch committed as a single transaction.
+     * @param maxBatch maximum number of statements per batch
+     * @param maxDelayMicros maximum time a statement waits for its batch to be committed
+     * @throws SQLException
+     */
+    public void enableGroupCommit(int maxBatch, long maxDelayMicros) throws SQLException {
+        groupCommit = new GroupCommit(pool, maxBatch, maxDelayMicros, false, this::writeFailed);
+    }
+
+    /**
+     * Enables the in-memory state machine mode. Every account balance is loaded into memory and is from then
+     * on only read from there. Writes are persisted in the background, in batches, without waiting for them.
+     * @param maxBatch maximum number of statements per batch
+     * @param maxDelayMicros maximum time a statement waits for its batch to be committed
+     * @throws SQLException
+     */
+    public void enableInMemory(int maxBatch, long maxDelayMicros) throws SQLException {
+        loadAccounts();
+        groupCommit = new GroupCommit(pool, maxBatch, maxDelayMicros, true, this::writeFailed);
+        inMemory = true;
+    }
+
+    /**
+     * Loads every account balance from the accounts table into memory
+     * @throws SQLException
+     */
+    private void loadAccounts() throws SQLException {
+        PooledConnection pc = pool.borrow();
+        try (
+                Statement s = pc.getConnection().createStatement();
+                ResultSet res = s.executeQuery("SELECT ACCOUNT_ID, BALANCE FROM APP.ACCOUNTS")) {
+            while (res.next())
+                balances.put(res.getInt(1), res.getInt(2));
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    /**
+     * Gives the current thread a database connection of its own, used by all of its subsequent queries
+     */
+    public void pinConnection(){
+        try {
+            pool.pin();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the given action once every write made so far is committed
+     * (immediately if group commit is disabled or nothing is pending)
+     * @param action action to be run
+     */
+    public void afterCommit(Runnable action){
+        if(groupCommit == null)
+            action.run();
+        else
+            groupCommit.afterCommit(action);
+    }
+
+    /**
+     * Sets the action run if a group commit write can't be committed, after which the database
+     * no longer matches the balances in memory and no reply waiting for a commit is sent
+     * @param action action to be run, on the thread that was committing
+     */
+    public void onWriteFailure(Runnable action){
+        writeFailure = action;
+    }
+
+    /**
+     * @return true if a group commit write couldn't be committed
+     */
+    public boolean hasWriteFailed(){
+        return writeFailed;
+    }
+
+    private void writeFailed(){
+        writeFailed = true;
+        Runnable action = writeFailure;
+        if(action != null)
+            action.run();
+    }
+
+    /**
+     * Commits every pending group commit write, so that it becomes visible to queries
+     */
+    public void flush(){
+        if(groupCommit != null)
+            groupCommit.flush();
+    }
+
+    /**
+     * Commits every pending write, closes every connection and shuts the database down, so that the next
+     * boot doesn't go through Derby's crash recovery. No query can be made afterwards
+     */
+    public void shutdown(){
+        if(groupCommit != null) {
+            groupCommit.close();
+            groupCommit = null;
+        }
+        pool.close();
+
+        EmbeddedDataSource ds = new EmbeddedDataSource();
+        ds.setDatabaseName(dbName);
+        ds.setShutdownDatabase("shutdown");
+        try {
+            ds.getConnection();
+        } catch (SQLException e) {
+            // Derby reports a successful shutdown with SQL state 08006
+            if(!"08006".equals(e.getSQLState()))
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return textual description of the connection pool metrics
+     */
+    public String getPoolMetrics(){
+        return pool.toString();
+    }
+
+    /**
+     * @return connection pool, for the benchmarks to read its metrics
+     */
+    ConnectionPool getPool(){
+        return pool;
+    }
+
+    /**
+     * @return textual description of the in-memory balances (number of accounts, heap used, hits and misses)
+     */
+    public String getCacheMetrics(){
+        return balances.toString();
+    }
+
     /**
      * Prepares the connection to execute a transaction
      * @param con connection to be used
@@ -152,12 +417,11 @@ public class DataAccess {
      * @param query query to be executed
      */
     private void tryDbUpdate(String query) throws SQLException {
-        Statement s = null;
-        try {
-            s = rawDataSource.getConnection().createStatement();
+        PooledConnection pc = pool.borrow();
+        try (Statement s = pc.getConnection().createStatement()) {
             s.executeUpdate(query);
         } finally {
-            s.close();
+            pool.release(pc);
         }
     }
 
@@ -199,6 +463,22 @@ public class DataAccess {
                 + "CONSTRAINT TO_ACCOUNT_ID_REF FOREIGN KEY (TO_ACCOUNT_ID) REFERENCES ACCOUNTS(ACCOUNT_ID))");
     }
 
+    /**
+     * Creates the indexes behind the latest operations query: the operations of an account, newest first,
+     * are read straight from the index instead of scanning and sorting the whole log
+     * @throws SQLException
+     */
+    public void createOperationIndexes() throws SQLException {
+        tryDbUpdate("create index OPERATIONS_FROM_IDX on OPERATIONS (FROM_ACCOUNT_ID, OP_ID DESC)");
+        tryDbUpdate("create index OPERATIONS_TO_IDX on OPERATIONS (TO_ACCOUNT_ID, OP_ID DESC)");
+    }
+
+    public void createMetadataTable() throws SQLException {
+        tryDbUpdate("create table METADATA ("
+                + "NAME VARCHAR(32) PRIMARY KEY, "
+                + "VAL INTEGER)");
+    }
+
     public void createOperationTypeTable() throws SQLException {
         tryDbUpdate("create table OPERATION_TYPE ("
                 + "OP_TYPE INTEGER PRIMARY KEY, "
@@ -223,6 +503,40 @@ public class DataAccess {
         tryDbUpdate("DROP TABLE " + tablename);
     }
 
+    /**
+     * Records a new operation in the history cache
+     * @param type operation type, as stored in the OP_TYPE column
+     * @param op_id operation id
+     * @param amount moved or transferred amount
+     * @param from account id (withdrawn account for transfers)
+     * @param to deposited account id
+     * @param from_balance account final balance (withdrawn account for transfers)
+     * @param to_balance deposited account final balance
+     */
+    private void recordHistory(int type, int op_id, int amount, int from, int to, int from_balance, int to_balance){
+        if(history == null)
+            return;
+
+        int[] historyRow = new int[OperationCursor.WIDTH];
+        historyLock.readLock().lock();
+        try {
+            recorded.incrementAndGet();
+            historyRow[OperationCursor.TYPE] = type;
+            historyRow[OperationCursor.ID] = op_id;
+            historyRow[OperationCursor.AMOUNT] = amount;
+            historyRow[OperationCursor.FROM] = from;
+            historyRow[OperationCursor.TO] = to;
+            historyRow[OperationCursor.FROM_BALANCE] = from_balance;
+            historyRow[OperationCursor.TO_BALANCE] = to_balance;
+            if(type == OperationCursor.CREATE)
+                history.create(from, historyRow, 0, System.currentTimeMillis());
+            else
+                history.record(historyRow, 0, System.currentTimeMillis());
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
     /**
      * Make movement in normal execution mode (logs the movement - operations table - and updates the account balance - accounts table)
      * @param mv_amount movement amount
@@ -231,15 +545,42 @@ public class DataAccess {
      * @return inserted operation id
      */
     public int makeMovement(int mv_amount, int account_id, int final_balance){
-        int generated_id = 0;
+        return makeMovement(NEXT_ID, mv_amount, account_id, final_balance);
+    }
 
+    /**
+     * Make movement in normal execution mode, with an operation id reserved with reserveOperationId
+     * (or NEXT_ID to take the next one)
+     * @param op_id operation id
+     * @param mv_amount movement amount
+     * @param account_id account where the movement will be executed
+     * @param final_balance new account balance to be updated
+     * @return inserted operation id
+     */
+    public int makeMovement(int op_id, int mv_amount, int account_id, int final_balance){
+        int generated_id = op_id;
+        PooledConnection pc = null;
+
+        // Ids taken here are assigned and logged under the lock, so that they reach the log in order
+        boolean assign = op_id == NEXT_ID;
         try {
-            operationLock.lock();
-            executeMovement(generated_id = currentOperationId++, mv_amount, account_id, final_balance, rawDataSource.getConnection());
+            if(assign) {
+                operationLock.lock();
+                generated_id = currentOperationId.getAndIncrement();
+            }
+            if(groupCommit != null) {
+                groupCommit.logMovement(generated_id, mv_amount, account_id, final_balance);
+            } else {
+                pc = pool.borrow();
+                executeMovement(generated_id, mv_amount, account_id, final_balance, pc.getConnection());
+            }
+            recordHistory(OperationCursor.MOVEMENT, generated_id, mv_amount, account_id, 0, final_balance, 0);
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
-            operationLock.unlock();
+            if(assign)
+                operationLock.unlock();
+            pool.release(pc);
         }
 
         updateBalance(account_id, final_balance);
@@ -247,6 +588,59 @@ public class DataAccess {
         return generated_id;
     }
 
+    /**
+     * Applies a movement in a single transaction: a conditional update adds the amount to the balance, unless the
+     * account hasn't enough money for a withdrawal, and the movement is logged in the same commit.
+     * The in-memory balance is checked first, so rejected movements never reach the database.
+     * With group commit, writes are already batched, so the movement is appended as usual.
+     * @param op_id operation id reserved with reserveOperationId, or NEXT_ID to take the next one
+     * @param mv_amount movement amount
+     * @param account_id account where the movement will be executed
+     * @return new balance of the account, NO_ACCOUNT if it doesn't exist or hasn't enough money
+     */
+    public int applyMovement(int op_id, int mv_amount, int account_id){
+        int balance = balanceOf(account_id);
+        if(balance == NO_ACCOUNT || balance + mv_amount < 0)
+            return NO_ACCOUNT;
+
+        int final_balance = balance + mv_amount;
+        if(groupCommit != null) {
+            makeMovement(op_id, mv_amount, account_id, final_balance);
+            return final_balance;
+        }
+
+        PooledConnection pc = null;
+        boolean committed = false;
+        boolean assign = op_id == NEXT_ID;
+        try {
+            if(assign) {
+                operationLock.lock();
+                op_id = currentOperationId.getAndIncrement();
+            }
+            pc = pool.borrow();
+            Connection con = pc.getConnection();
+            con.setAutoCommit(false);
+            if(executeAddBalance(account_id, mv_amount, con)) {
+                executeMovement(op_id, mv_amount, account_id, final_balance, con);
+                con.commit();
+                committed = true;
+                recordHistory(OperationCursor.MOVEMENT, op_id, mv_amount, account_id, 0, final_balance, 0);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if(assign)
+                operationLock.unlock();
+            endTransaction(pc, committed);
+            pool.release(pc);
+        }
+
+        if(!committed)
+            return NO_ACCOUNT;
+        balances.put(account_id, final_balance);
+        return final_balance;
+    }
+
     /**
      * Make movement in recovery execution mode(logs de movement with given id - operations table)
      * @param op_id operation id to be inserted in the log
@@ -280,9 +674,7 @@ public class DataAccess {
      * @throws SQLException
      */
     public void executeMovement(int op_id, int mv_amount, int account_id, int final_balance, Connection con) throws SQLException {
-        PreparedStatement stmt = con.prepareStatement(
-                "insert into OPERATIONS (OP_ID, OP_TYPE, MV_AMOUNT, FROM_ACCOUNT_ID, FROM_CURRENT_BALANCE, TIMESTAMP) " +
-                        "values (?,?,?,?,?,?)");
+        PreparedStatement stmt = prepare(INSERT_MOVEMENT, con);
 
         stmt.setInt(1, op_id);
         stmt.setInt(2, OP_TYPES.valueOf("MOVEMENT").ordinal()+1);
@@ -291,7 +683,6 @@ public class DataAccess {
         stmt.setInt(5, final_balance);
         stmt.setTimestamp(6, new Timestamp(System.currentTimeMillis()));
         stmt.execute();
-        stmt.close();
     }
 
     /**
@@ -304,16 +695,47 @@ public class DataAccess {
      * @return inserted operation id
      */
     public int makeTransfer(int tr_amount, int from_account, int to_account, int from_final_balance, int to_final_balance) {
-        int generated_id = 0;
+        return makeTransfer(NEXT_ID, tr_amount, from_account, to_account, from_final_balance, to_final_balance);
+    }
 
+    /**
+     * Make transfer in normal execution mode, with an operation id reserved with reserveOperationId
+     * (or NEXT_ID to take the next one)
+     * @param op_id operation id
+     * @param tr_amount transfer amount
+     * @param from_account account id to withdraw
+     * @param to_account account id to deposit the money
+     * @param from_final_balance withdrawn account final balance
+     * @param to_final_balance deposited account final balance
+     * @return inserted operation id
+     */
+    public int makeTransfer(int op_id, int tr_amount, int from_account, int to_account, int from_final_balance,
+                            int to_final_balance) {
+        int generated_id = op_id;
+        PooledConnection pc = null;
+
+        boolean assign = op_id == NEXT_ID;
         try {
-            operationLock.lock();
-            executeTransfer(generated_id = currentOperationId++, tr_amount, from_account,
-                    to_account, from_final_balance, to_final_balance, rawDataSource.getConnection());
+            if(assign) {
+                operationLock.lock();
+                generated_id = currentOperationId.getAndIncrement();
+            }
+            if(groupCommit != null) {
+                groupCommit.logTransfer(generated_id, tr_amount, from_account, to_account, from_final_balance,
+                        to_final_balance);
+            } else {
+                pc = pool.borrow();
+                executeTransfer(generated_id, tr_amount, from_account, to_account, from_final_balance,
+                        to_final_balance, pc.getConnection());
+            }
+            recordHistory(OperationCursor.TRANSFER, generated_id, tr_amount, from_account, to_account,
+                    from_final_balance, to_final_balance);
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
-            operationLock.unlock();
+            if(assign)
+                operationLock.unlock();
+            pool.release(pc);
         }
 
         updateBalance(from_account, from_final_balance);
@@ -322,6 +744,70 @@ public class DataAccess {
         return generated_id;
     }
 
+    /**
+     * Applies a transfer in a single transaction: the withdrawal is a conditional update, that only succeeds if the
+     * account has enough money, followed by the deposit and the transfer log, all in the same commit.
+     * The in-memory balances are checked first, so rejected transfers never reach the database.
+     * With group commit, writes are already batched, so the transfer is appended as usual.
+     * @param op_id operation id reserved with reserveOperationId, or NEXT_ID to take the next one
+     * @param tr_amount transfer amount, can't be negative
+     * @param from_account account id to withdraw
+     * @param to_account account id to deposit the money
+     * @return true if the transfer was applied, false if the amount is negative, an account doesn't exist
+     * or hasn't enough money
+     */
+    public boolean applyTransfer(int op_id, int tr_amount, int from_account, int to_account){
+        // The conditional withdrawal only guards non-negative amounts: a negative one would always succeed
+        if(tr_amount < 0)
+            return false;
+
+        int from_balance = balanceOf(from_account);
+        int to_balance = balanceOf(to_account);
+        if(from_balance == NO_ACCOUNT || to_balance == NO_ACCOUNT || from_balance < tr_amount)
+            return false;
+
+        int from_final_balance = from_balance - tr_amount;
+        // A transfer to the same account leaves its balance unchanged
+        int to_final_balance = (from_account == to_account ? from_final_balance : to_balance) + tr_amount;
+        if(groupCommit != null) {
+            makeTransfer(op_id, tr_amount, from_account, to_account, from_final_balance, to_final_balance);
+            return true;
+        }
+
+        PooledConnection pc = null;
+        boolean committed = false;
+        boolean assign = op_id == NEXT_ID;
+        try {
+            if(assign) {
+                operationLock.lock();
+                op_id = currentOperationId.getAndIncrement();
+            }
+            pc = pool.borrow();
+            Connection con = pc.getConnection();
+            con.setAutoCommit(false);
+            if(executeAddBalance(from_account, -tr_amount, con) && executeAddBalance(to_account, tr_amount, con)) {
+                executeTransfer(op_id, tr_amount, from_account, to_account, from_final_balance, to_final_balance, con);
+                con.commit();
+                committed = true;
+                recordHistory(OperationCursor.TRANSFER, op_id, tr_amount, from_account, to_account,
+                        from_final_balance, to_final_balance);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if(assign)
+                operationLock.unlock();
+            endTransaction(pc, committed);
+            pool.release(pc);
+        }
+
+        if(!committed)
+            return false;
+        balances.put(from_account, from_final_balance);
+        balances.put(to_account, to_final_balance);
+        return true;
+    }
+
     /**
      * Make transfer in recovery execution mode(logs de transfer with given id - operations table)
      * @param op_id operation id to be inserted in the log
@@ -362,9 +848,7 @@ public class DataAccess {
     public void executeTransfer(int op_id, int tr_amount, int from_account, int to_account, int from_final_balance,
                                 int to_final_balance, Connection con) throws SQLException {
 
-        PreparedStatement stmt = con.prepareStatement(
-                "insert into OPERATIONS (OP_ID, OP_TYPE, MV_AMOUNT, FROM_ACCOUNT_ID, TO_ACCOUNT_ID, FROM_CURRENT_BALANCE, " +
-                        "TO_CURRENT_BALANCE, TIMESTAMP) values (?,?,?,?,?,?,?,?)");
+        PreparedStatement stmt = prepare(INSERT_TRANSFER, con);
 
         stmt.setInt(1, op_id);
         stmt.setInt(2, OP_TYPES.valueOf("TRANSFER").ordinal()+1);
@@ -375,7 +859,6 @@ public class DataAccess {
         stmt.setInt(7, to_final_balance);
         stmt.setTimestamp(8, new Timestamp(System.currentTimeMillis()));
         stmt.execute();
-        stmt.close();
     }
 
     /**
@@ -387,16 +870,7 @@ public class DataAccess {
      */
     public boolean logNewAccount(int op_id, int account_id, int current_balance, Connection con){
         try {
-            PreparedStatement stmt = con.prepareStatement(
-                    "insert into OPERATIONS (OP_ID, OP_TYPE, FROM_ACCOUNT_ID, FROM_CURRENT_BALANCE, TIMESTAMP) " +
-                            "values (?,?,?,?,?)");
-            stmt.setInt(1, op_id);
-            stmt.setInt(2, OP_TYPES.valueOf("CREATE").ordinal()+1);
-            stmt.setInt(3, account_id);
-            stmt.setInt(4, current_balance);
-            stmt.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
-            stmt.execute();
-            stmt.close();
+            executeLogNewAccount(op_id, account_id, current_balance, con);
         } catch (SQLException e) {
             try {
                 con.rollback();
@@ -417,22 +891,40 @@ public class DataAccess {
      * @param current_balance logged balance
      */
     public void logNewAccount(int op_id, int account_id, int current_balance){
+        if(groupCommit != null) {
+            groupCommit.logCreate(op_id, account_id, current_balance);
+            return;
+        }
+
+        PooledConnection pc = null;
         try {
-            PreparedStatement stmt = rawDataSource.getConnection().prepareStatement(
-                    "insert into OPERATIONS (OP_ID, OP_TYPE, FROM_ACCOUNT_ID, FROM_CURRENT_BALANCE, TIMESTAMP) " +
-                            "values (?,?,?,?,?)");
-            stmt.setInt(1, op_id);
-            stmt.setInt(2, OP_TYPES.valueOf("CREATE").ordinal()+1);
-            stmt.setInt(3, account_id);
-            stmt.setInt(4, current_balance);
-            stmt.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
-            stmt.execute();
-            stmt.close();
+            pc = pool.borrow();
+            executeLogNewAccount(op_id, account_id, current_balance, pc.getConnection());
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            pool.release(pc);
         }
     }
 
+    /**
+     * Execute account creation log statement with given parameters
+     * @param op_id logged operation id
+     * @param account_id logged account id
+     * @param current_balance logged balance
+     * @param con connection to be used
+     * @throws SQLException
+     */
+    private void executeLogNewAccount(int op_id, int account_id, int current_balance, Connection con) throws SQLException {
+        PreparedStatement stmt = prepare(INSERT_CREATE, con);
+        stmt.setInt(1, op_id);
+        stmt.setInt(2, OP_TYPES.valueOf("CREATE").ordinal()+1);
+        stmt.setInt(3, account_id);
+        stmt.setInt(4, current_balance);
+        stmt.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+        stmt.execute();
+    }
+
     /**
      * Make new account in recovery execution mode(logs de creation with given id - accounts table)
      * @param account_id
@@ -452,7 +944,7 @@ public class DataAccess {
             }
         }
 
-        cache.add(new Account(account_id, balance));
+        balances.put(account_id, balance);
         return true;
     }
 
@@ -462,21 +954,49 @@ public class DataAccess {
      * @return generated account id
      */
     public int makeNewAccount(int balance){
-        int generated_id = 0;
+        return makeNewAccount(NEXT_ID, NEXT_ID, balance);
+    }
+
+    /**
+     * Make new account in normal execution mode, with ids reserved with reserveAccountId and reserveOperationId
+     * (or NEXT_ID to take the next ones)
+     * @param account_id account id
+     * @param op_id operation id of the account creation log
+     * @param balance initial account balance
+     * @return generated account id, NO_ACCOUNT if it couldn't be created
+     */
+    public int makeNewAccount(int account_id, int op_id, int balance){
+        int generated_id = account_id;
+        PooledConnection pc = null;
 
+        accountLock.lock();
         try {
-            accountLock.lock();
-            executeNewAccount(generated_id = currentAccountId++, balance, rawDataSource.getConnection());
+            if(account_id == NEXT_ID)
+                generated_id = currentAccountId.getAndIncrement();
+            if(groupCommit != null) {
+                groupCommit.insertAccount(generated_id, balance);
+            } else {
+                pc = pool.borrow();
+                executeNewAccount(generated_id, balance, pc.getConnection());
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return NO_ACCOUNT;
+        } finally {
             accountLock.unlock();
+            pool.release(pc);
+        }
 
-            cache.add(new Account(generated_id, balance));
+        balances.put(generated_id, balance);
 
-            operationLock.lock();
-            logNewAccount(currentOperationId, generated_id, balance);
-            currentOperationId++;
+        operationLock.lock();
+        try {
+            if(op_id == NEXT_ID)
+                op_id = currentOperationId.getAndIncrement();
+            logNewAccount(op_id, generated_id, balance);
+            recordHistory(OperationCursor.CREATE, op_id, 0, generated_id, 0, balance, 0);
+        } finally {
             operationLock.unlock();
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
 
         return generated_id;
@@ -490,36 +1010,46 @@ public class DataAccess {
      * @throws SQLException
      */
     public void executeNewAccount(int account_id, int balance, Connection con) throws SQLException {
-        PreparedStatement stmt = con.prepareStatement(
-                "insert into ACCOUNTS (ACCOUNT_ID, BALANCE, TIMESTAMP) values (?,?,?)");
+        PreparedStatement stmt = prepare(INSERT_ACCOUNT, con);
 
         stmt.setInt(1, account_id);
         stmt.setInt(2, balance);
         stmt.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
         stmt.execute();
-        stmt.close();
     }
 
     /**
-     * Update balance in account entry at the accounts table and update balance in the cache
+     * Update balance in account entry at the accounts table and update balance in memory
      * @param account_id account id to update
      * @param final_amount amount to update
      */
     public void updateBalance(int account_id, int final_amount){
-        dbUpdate("update ACCOUNTS set BALANCE = "+ final_amount + " where ACCOUNT_ID = " + account_id);
-        cache.add(new Account(account_id, final_amount));
+        if(groupCommit != null) {
+            groupCommit.updateBalance(account_id, final_amount);
+        } else {
+            PooledConnection pc = null;
+            try {
+                pc = pool.borrow();
+                executeUpdateBalance(account_id, final_amount, pc.getConnection());
+            } catch (SQLException e) {
+                e.printStackTrace();
+            } finally {
+                pool.release(pc);
+            }
+        }
+        balances.put(account_id, final_amount);
     }
 
     /**
-     * Update balance in account entry at the accounts table and update balance in the cache (recovery mode)
+     * Update balance in account entry at the accounts table and update balance in memory (recovery mode)
      * @param account_id account id to update
      * @param final_amount amount to update
      * @param con connection to be used
      */
     public boolean updateBalance(int account_id, int final_amount, Connection con){
         try {
-            tryDbUpdate("update ACCOUNTS set BALANCE = "+ final_amount + " where ACCOUNT_ID = " + account_id, con);
-            cache.add(new Account(account_id, final_amount));
+            executeUpdateBalance(account_id, final_amount, con);
+            balances.put(account_id, final_amount);
         } catch (SQLException e) {
             try {
                 con.rollback();
@@ -532,33 +1062,113 @@ public class DataAccess {
         return true;
     }
 
+    /**
+     * Execute balance update statement with given parameters
+     * @param account_id account id to update
+     * @param final_amount amount to update
+     * @param con connection to be used
+     * @throws SQLException
+     */
+    private void executeUpdateBalance(int account_id, int final_amount, Connection con) throws SQLException {
+        PreparedStatement stmt = prepare(UPDATE_BALANCE, con);
+        stmt.setInt(1, final_amount);
+        stmt.setInt(2, account_id);
+        stmt.executeUpdate();
+    }
+
+    /**
+     * Execute the conditional balance update: adds the amount to the balance, unless it would become negative
+     * @param account_id account id to update
+     * @param amount amount to add (negative for withdrawals)
+     * @param con connection to be used
+     * @return true if the account was updated
+     * @throws SQLException
+     */
+    private boolean executeAddBalance(int account_id, int amount, Connection con) throws SQLException {
+        PreparedStatement stmt = prepare(ADD_BALANCE, con);
+        stmt.setInt(1, amount);
+        stmt.setInt(2, account_id);
+        stmt.setInt(3, Math.max(0, -amount));
+        return stmt.executeUpdate() == 1;
+    }
+
+    /**
+     * Ends the transaction of a fused write, rolling it back if it wasn't committed, and restores auto-commit
+     * @param pc connection of the transaction (may be null)
+     * @param committed true if the transaction was committed
+     */
+    private void endTransaction(PooledConnection pc, boolean committed){
+        if(pc == null)
+            return;
+        try {
+            if(!committed)
+                pc.getConnection().rollback();
+            pc.getConnection().setAutoCommit(true);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Returns account balance in case the account exists
      * @param account_id account from which to return the balance
      * @return balance of the account, null otherwise
      */
     public Integer getAccountBalance(int account_id){
-        Account a = cache.get(account_id);
-        if(a != null) return a.getBalance();
-
-        try (
-                Statement s = rawDataSource.getConnection().createStatement();
-                ResultSet res = s.executeQuery(
-                        "SELECT BALANCE FROM ACCOUNTS WHERE ACCOUNT_ID = " + account_id)) {
+        int balance = balanceOf(account_id);
+        return balance == NO_ACCOUNT ? null : balance;
+    }
 
-            if (res.next())
-                return res.getInt("BALANCE");
+    /**
+     * Returns account balance in case the account exists, without boxing it.
+     * Balances are kept in memory once read, so the database is only queried the first time.
+     * @param account_id account from which to return the balance
+     * @return balance of the account, NO_ACCOUNT otherwise
+     */
+    public int balanceOf(int account_id){
+        int balance = balances.get(account_id);
+        // In memory mode every account is in memory, so a missing one doesn't exist
+        if(balance != NO_ACCOUNT || inMemory) return balance;
+
+        // Every write keeps the balances it sets in memory, which never evicts them, so an account missing from
+        // memory has no pending group commit write: the database is current and doesn't need a flush
+        PooledConnection pc = null;
+        try {
+            pc = pool.borrow();
+            return loadBalance(account_id, pc.getConnection());
         } catch (SQLException ex) {
-            return null;
+            return NO_ACCOUNT;
+        } finally {
+            pool.release(pc);
         }
+    }
 
-        return null;
+    /**
+     * Reads the balance of an account from the accounts table, keeping it in memory
+     * @param account_id account from which to read the balance
+     * @param con connection to be used
+     * @return balance of the account, NO_ACCOUNT if it doesn't exist
+     * @throws SQLException
+     */
+    private int loadBalance(int account_id, Connection con) throws SQLException {
+        PreparedStatement stmt = prepare(SELECT_BALANCE, con);
+        stmt.setInt(1, account_id);
+
+        try (ResultSet res = stmt.executeQuery()) {
+            if (!res.next())
+                return NO_ACCOUNT;
+
+            // A write made meanwhile keeps its newer balance
+            return balances.putIfAbsent(account_id, res.getInt("BALANCE"));
+        }
     }
 
     public String getOperationLogs() throws SQLException {
         StringBuilder a = new StringBuilder();
+        flush();
+        PooledConnection pc = pool.borrow();
         try (
-                Statement s = rawDataSource.getConnection().createStatement();
+                Statement s = pc.getConnection().createStatement();
                 ResultSet res = s.executeQuery(
                         "SELECT * FROM APP.OPERATIONS")) {
             a.append("List of operation entries: \n");
@@ -576,6 +1186,8 @@ public class DataAccess {
                         break;
                 }
             }
+        } finally {
+            pool.release(pc);
         }
 
         return a.toString();
@@ -610,9 +1222,12 @@ public class DataAccess {
 
     public String getAccountsInfo(){
         StringBuilder a = new StringBuilder();
+        flush();
+        PooledConnection pc = null;
         try {
+            pc = pool.borrow();
             try (
-                    Statement s = rawDataSource.getConnection().createStatement();
+                    Statement s = pc.getConnection().createStatement();
                     ResultSet res = s.executeQuery(
                             "SELECT * FROM APP.ACCOUNTS")) {
                 a.append("Account list: \n");
@@ -624,98 +1239,197 @@ public class DataAccess {
             }
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            pool.release(pc);
         }
 
         return a.toString();
     }
 
     /**
-     * Returns textual information about the last n operations on the given account id
+     * Returns textual information about the last n operations on the given account id, newest first
      * @param account_id account id associated with the operations
      * @param n max number of operations to return
      * @return string containing information about the last n operations (id, type, amount, balance, timestamp)
      */
     public String getLastAccountOperations(int account_id, int n) {
-        StringBuilder a = new StringBuilder();
-        try (
-                Statement s = rawDataSource.getConnection().createStatement();
-                ResultSet res = s.executeQuery(
-                        "SELECT * FROM OPERATIONS where FROM_ACCOUNT_ID = "+account_id+" OR TO_ACCOUNT_ID = "+account_id+" ORDER BY TIMESTAMP " +
-                                "DESC FETCH FIRST "+n+" ROWS ONLY")) {
+        return getLastAccountHistory(account_id, n).toString();
+    }
 
-            while (res.next()) {
-                int type = res.getInt("OP_TYPE");
-                switch(type){
-                    case 1:
-                        getMovementLog(a, res);
-                        break;
-                    case 2:
-                        getTransferLog(a, res);
-                        break;
-                    case 3:
-                        getCreateAccountLog(a, res);
-                        break;
+    /**
+     * Returns the last n operations on the given account id, newest first.
+     * Served from the history cache when it holds them, from the database otherwise
+     * @param account_id account id associated with the operations
+     * @param n max number of operations to return
+     * @return last n operations, none if n isn't positive
+     */
+    public History getLastAccountHistory(int account_id, int n) {
+        if(n <= 0)
+            return new History(account_id, new int[0], new long[0]);
+
+        int capacity = Math.max(n, history == null ? 0 : HistoryCache.DEPTH);
+        int[] rows = new int[capacity * OperationCursor.WIDTH];
+        long[] timestamps = new long[capacity];
+
+        int count = history == null ? -1 : history.latest(account_id, n, rows, timestamps);
+        if(count < 0)
+            count = Math.min(n, loadLastAccountOperations(account_id, capacity, rows, timestamps));
+
+        return new History(account_id, Arrays.copyOf(rows, count * OperationCursor.WIDTH),
+                Arrays.copyOf(timestamps, count));
+    }
+
+    /**
+     * Reads the last n operations on the given account id from the database, newest first, and caches them.
+     * The operations withdrawing from and depositing to the account are read from their own indexes,
+     * at most n of each, and merged by operation id
+     * @param account_id account id associated with the operations
+     * @param n max number of operations to read
+     * @param rows array to copy the operations into, laid out as read by OperationCursor
+     * @param timestamps array to copy their timestamps into
+     * @return number of operations read
+     */
+    private int loadLastAccountOperations(int account_id, int n, int[] rows, long[] timestamps) {
+        // Operations logged after this point may be missing from the result, which is then not cached.
+        // Operations committed but not recorded yet may be in it, and are skipped by the buffer when recorded
+        long version = recorded.get();
+        flush();
+
+        int count = 0;
+        PooledConnection pc = null;
+        try {
+            pc = pool.borrow();
+            PreparedStatement fromStmt = pc.prepare(SELECT_LAST_OPERATIONS_FROM);
+            fromStmt.setInt(1, account_id);
+            fromStmt.setInt(2, n);
+            PreparedStatement toStmt = pc.prepare(SELECT_LAST_OPERATIONS_TO);
+            toStmt.setInt(1, account_id);
+            toStmt.setInt(2, n);
+
+            try (ResultSet from = fromStmt.executeQuery(); ResultSet to = toStmt.executeQuery()) {
+                boolean hasFrom = from.next(), hasTo = to.next();
+                for(; count < n && (hasFrom || hasTo); count++) {
+                    int fromId = hasFrom ? from.getInt("OP_ID") : -1;
+                    int toId = hasTo ? to.getInt("OP_ID") : -1;
+                    ResultSet res = fromId >= toId ? from : to;
+
+                    int o = count * OperationCursor.WIDTH;
+                    rows[o + OperationCursor.TYPE] = res.getInt("OP_TYPE");
+                    rows[o + OperationCursor.ID] = res.getInt("OP_ID");
+                    rows[o + OperationCursor.AMOUNT] = res.getInt("MV_AMOUNT");
+                    rows[o + OperationCursor.FROM] = res.getInt("FROM_ACCOUNT_ID");
+                    rows[o + OperationCursor.TO] = res.getInt("TO_ACCOUNT_ID");
+                    rows[o + OperationCursor.FROM_BALANCE] = res.getInt("FROM_CURRENT_BALANCE");
+                    rows[o + OperationCursor.TO_BALANCE] = res.getInt("TO_CURRENT_BALANCE");
+                    timestamps[count] = res.getTimestamp("TIMESTAMP").getTime();
+
+                    // A transfer to the same account is returned by both queries
+                    if(fromId >= toId)
+                        hasFrom = from.next();
+                    if(toId >= fromId)
+                        hasTo = to.next();
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
+            return count;
+        } finally {
+            pool.release(pc);
         }
-        if(a.length() == 0) a.append("No operations for account "+account_id);
-        return a.toString();
+
+        if(history != null && count > 0) {
+            historyLock.writeLock().lock();
+            try {
+                if(recorded.get() == version)
+                    history.fill(account_id, rows, timestamps, count, count < n);
+            } finally {
+                historyLock.writeLock().unlock();
+            }
+        }
+        return count;
     }
 
     /**
-     * Get last account id used
-     * @return last account id
+     * @return textual description of the history cache metrics
+     */
+    public String getHistoryMetrics(){
+        return history == null ? "History cache disabled" : history.toString();
+    }
+
+    /**
+     * Get the id following the last account id used.
+     * MAX over the primary key is answered from its index, so this doesn't depend on the table size
+     * @return next account id
      */
     private int getCurrentAccountId() {
-        accountLock.lock();
-        int nmr = 1;
-        try (
-                Statement s = rawDataSource.getConnection().createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-                ResultSet res = s.executeQuery(
-                        "SELECT ACCOUNT_ID FROM APP.ACCOUNTS ORDER BY ACCOUNT_ID ASC")) {
+        return nextId(SELECT_MAX_ACCOUNT_ID);
+    }
+
+    /**
+     * Get the id following the last operation id used.
+     * MAX over the primary key is answered from its index, so this doesn't depend on the table size
+     * @return next operation id
+     */
+    public int getCurrentOperationId(){
+        return nextId(SELECT_MAX_OPERATION_ID);
+    }
 
-            if (res.last()) {
-                nmr = Integer.parseInt(res.getString("ACCOUNT_ID")) + 1;
+    private int nextId(String query){
+        int nmr = 1;
+        PooledConnection pc = null;
+        try {
+            pc = pool.borrow();
+            try (ResultSet res = pc.prepare(query).executeQuery()) {
+                if (res.next() && res.getObject(1) != null)
+                    nmr = res.getInt(1) + 1;
             }
         } catch (SQLException ex) {
             return nmr;
+        } finally {
+            pool.release(pc);
         }
 
-        accountLock.unlock();
         return nmr;
     }
 
     /**
-     * Get last operation id used
-     * @return last operation id
+     * Get the id of the next operation to be logged, without querying the database
+     * @return next operation id
      */
-    public int getCurrentOperationId(){
-        int nmr = 1;
-        operationLock.lock();
-        try (
-                Statement s = rawDataSource.getConnection().createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-                ResultSet res = s.executeQuery(
-                        "SELECT OP_ID FROM APP.OPERATIONS ORDER BY OP_ID ASC")) {
+    public int getNextOperationId(){
+        return currentOperationId.get();
+    }
 
-            if (res.last()) {
-                nmr = Integer.parseInt(res.getString("OP_ID")) + 1;
-            }
-        } catch (SQLException ex) {
-            return nmr;
-        }
+    /**
+     * Reserves the next operation id, to be passed to makeMovement, makeTransfer or makeNewAccount
+     * @return reserved operation id
+     */
+    public int reserveOperationId(){
+        return currentOperationId.getAndIncrement();
+    }
 
-        operationLock.unlock();
-        return nmr;
+    /**
+     * Reserves the next account id, to be passed to makeNewAccount
+     * @return reserved account id
+     */
+    public int reserveAccountId(){
+        return currentAccountId.getAndIncrement();
+    }
+
+    /**
+     * Moves the next operation id forward, past ids left unused by failed operations of other replicas
+     * @param op_id next operation id
+     */
+    public void advanceOperationId(int op_id){
+        currentOperationId.accumulateAndGet(op_id, Math::max);
     }
 
     public void refreshCurrentAccountId(){
-        this.currentAccountId = getCurrentAccountId();
+        currentAccountId.set(getCurrentAccountId());
     }
 
     public void refreshCurrentOperationId(){
-        this.currentOperationId = getCurrentOperationId();
+        currentOperationId.set(getCurrentOperationId());
     }
 
     /**
@@ -724,18 +1438,7 @@ public class DataAccess {
      * @return true if database has given account number, false otherwise
      */
     public boolean hasAccount(int account){
-        boolean result;
-        if(cache.get(account) != null) return true;
-        try {
-            Statement s = rawDataSource.getConnection().createStatement();
-            ResultSet res = s.executeQuery(
-                    "SELECT ACCOUNT_ID FROM APP.ACCOUNTS WHERE ACCOUNT_ID = "+account);
-            result = res.next();
-        } catch (SQLException ex) {
-            return false;
-        }
-
-        return result;
+        return balanceOf(account) != NO_ACCOUNT;
     }
 
     /**
@@ -745,18 +1448,12 @@ public class DataAccess {
      * @return true if database has given account number, false otherwise
      */
     public boolean hasAccount(int account, Connection con){
-        boolean result;
-        if(cache.get(account) != null) return true;
+        if(balances.contains(account)) return true;
         try {
-            Statement s = con.createStatement();
-            ResultSet res = s.executeQuery(
-                    "SELECT ACCOUNT_ID FROM APP.ACCOUNTS WHERE ACCOUNT_ID = "+account);
-            result = res.next();
+            return loadBalance(account, con) != NO_ACCOUNT;
         } catch (SQLException ex) {
             return false;
         }
-
-        return result;
     }
 
     private static String buildDBName(String name) {
@@ -769,40 +1466,170 @@ public class DataAccess {
     }
 
     /**
-     * Returns operations executed after a given id
-     * @param n_id operation identifier delimiter
-     * @return list of bank operations
+     * Opens a forward-only cursor over the operations with ids in the given range
+     * @param from first operation id (inclusive)
+     * @param to last operation id (exclusive)
+     * @param descending if true, operations are read from the highest id
+     * @param fetchSize number of rows fetched from the database at a time
+     * @return cursor over the operations. Must be closed
+     * @throws SQLException
      */
-    public List<BankOperation> getOperationsAfter(int n_id){
-        List<BankOperation> op_list = new ArrayList<>();
+    public OperationCursor openOperations(int from, int to, boolean descending, int fetchSize) throws SQLException {
+        flush();
+        return new OperationCursor(pool, descending ? SELECT_OPERATIONS_DESC : SELECT_OPERATIONS_ASC, from, to, fetchSize);
+    }
 
-        try (
-                Statement s = rawDataSource.getConnection().createStatement();
-                ResultSet res = s.executeQuery(
-                        "SELECT * FROM APP.OPERATIONS where OP_ID >= "+n_id+" ORDER BY OP_ID DESC")) {
+    /**
+     * Returns the value of a metadata entry
+     * @param name entry name
+     * @param defaultValue value returned if the entry doesn't exist
+     * @return entry value
+     */
+    public int getMetadata(String name, int defaultValue){
+        PooledConnection pc = null;
+        try {
+            pc = pool.borrow();
+            PreparedStatement stmt = pc.prepare(SELECT_METADATA);
+            stmt.setString(1, name);
+            try (ResultSet res = stmt.executeQuery()) {
+                return res.next() ? res.getInt(1) : defaultValue;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return defaultValue;
+        } finally {
+            pool.release(pc);
+        }
+    }
 
-            while (res.next()) {
-                switch(res.getInt("OP_TYPE")){
-                    //MOVEMENT
-                    case 1:
-                        op_list.add(new BankOperation.Movement(res.getInt("OP_ID"), res.getInt("MV_AMOUNT"), res.getInt("FROM_CURRENT_BALANCE"), res.getString("FROM_ACCOUNT_ID")));
-                        break;
-                    //TRANSFER
-                    case 2:
-                        op_list.add(new BankOperation.Transfer(res.getInt("OP_ID"), res.getInt("MV_AMOUNT"),
-                                res.getString("FROM_ACCOUNT_ID"), res.getString("TO_ACCOUNT_ID"), res.getInt("FROM_CURRENT_BALANCE"),
-                                res.getInt("TO_CURRENT_BALANCE")));
-                        break;
-                    //CREATE
-                    case 3:
-                        op_list.add(new BankOperation.Create(res.getInt("OP_ID"), res.getString("FROM_ACCOUNT_ID")));
-                        break;
-                }
+    /**
+     * Sets the value of a metadata entry, creating it if needed
+     * @param name entry name
+     * @param value entry value
+     */
+    public void setMetadata(String name, int value){
+        PooledConnection pc = null;
+        try {
+            pc = pool.borrow();
+            executeSetMetadata(name, value, pc.getConnection());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    /**
+     * Removes metadata entries
+     * @param names entry names
+     */
+    public void deleteMetadata(String... names){
+        PooledConnection pc = null;
+        try {
+            pc = pool.borrow();
+            PreparedStatement stmt = pc.prepare(DELETE_METADATA);
+            for(String name : names) {
+                stmt.setString(1, name);
+                stmt.executeUpdate();
             }
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            pool.release(pc);
         }
+    }
+
+    /**
+     * Execute metadata entry upsert with given parameters
+     * @param name entry name
+     * @param value entry value
+     * @param con connection to be used
+     * @throws SQLException
+     */
+    private void executeSetMetadata(String name, int value, Connection con) throws SQLException {
+        PreparedStatement stmt = prepare(UPDATE_METADATA, con);
+        stmt.setInt(1, value);
+        stmt.setString(2, name);
+        if(stmt.executeUpdate() > 0)
+            return;
+
+        stmt = prepare(INSERT_METADATA, con);
+        stmt.setString(1, name);
+        stmt.setInt(2, value);
+        stmt.executeUpdate();
+    }
+
+    /**
+     * Sets the balance of the given accounts, creating the ones that don't exist (recovery mode).
+     * Accounts are written in parallel, partitioned by id (see RecoveryApplier).
+     * @param accounts account ids
+     * @param final_balances balance of each account
+     * @return true if every balance was set
+     */
+    public boolean recoverBalances(int[] accounts, int[] final_balances){
+        return recoveryApplier().applyBalances(accounts, final_balances);
+    }
+
+    /**
+     * Logs the given operations with their ids (recovery mode).
+     * Operations are written in parallel, partitioned by account (see RecoveryApplier), and the RECOVERY_LOG
+     * watermark is moved past them once they are all committed, so an interrupted recovery can resume
+     * after the last logged chunk. The accounts they reference must already exist.
+     * @param rows operations to be logged, laid out as read by OperationCursor
+     * @return true if every operation was logged. Otherwise some of them may have been, until discarded
+     * with discardOperationsFrom
+     */
+    public boolean recoverOperations(int[] rows){
+        if(!recoveryApplier().applyOperations(rows))
+            return false;
+
+        if(history != null) {
+            long now = System.currentTimeMillis();
+            for(int o = 0; o < rows.length; o += OperationCursor.WIDTH)
+                history.record(rows, o, now);
+        }
+
+        if(rows.length > 0)
+            setMetadata(RECOVERY_LOG, rows[rows.length - OperationCursor.WIDTH + OperationCursor.ID] + 1);
+        return true;
+    }
+
+    /**
+     * Removes every operation logged with an id equal or greater than the given one, left behind
+     * by an interrupted recovery (recovery mode)
+     * @param op_id first operation id to be removed
+     */
+    public void discardOperationsFrom(int op_id){
+        PooledConnection pc = null;
+        try {
+            pc = pool.borrow();
+            PreparedStatement stmt = pc.prepare(DELETE_OPERATIONS_FROM);
+            stmt.setInt(1, op_id);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    /**
+     * Stops the recovery workers
+     * @return textual description of the recovery metrics (throughput in ops/sec)
+     */
+    public String endRecovery(){
+        if(recoveryApplier == null)
+            return "RECOVERY APPLY: nothing to apply";
+
+        recoveryApplier.close();
+        String metrics = recoveryApplier.toString();
+        recoveryApplier = null;
+        return metrics;
+    }
 
-        return op_list;
+    private RecoveryApplier recoveryApplier(){
+        if(recoveryApplier == null)
+            recoveryApplier = new RecoveryApplier(pool, balances);
+        return recoveryApplier;
     }
 }
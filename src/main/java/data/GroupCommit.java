@@ -0,0 +1,412 @@
+package data;
+
+import data.ConnectionPool.PooledConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write path that groups the operation log inserts and account updates of many operations
+ * into a single JDBC batch, committed in one transaction (a single Derby log force).
+ * Writes are appended to an in-memory buffer, flushed when it reaches its maximum size or when its oldest
+ * entry has been waiting for longer than the maximum delay.
+ * In synchronous mode, actions registered with afterCommit (e.g. client replies) only run after the flush.
+ * In asynchronous mode, they run immediately and full buffers are flushed by the background writer thread.
+ * If a batch fails, its writes are retried one by one, so that a bad row doesn't drop the others. Should any
+ * of them still fail, the database no longer matches the balances in memory: the group commit is marked as
+ * failed, the actions waiting for the batch (and for any later one) never run, and the failure handler is called.
+ */
+public class GroupCommit {
+    // Statements are flushed in this order, so that accounts exist before being referenced by the log
+    private static final String[] FLUSH_ORDER = {
+            DataAccess.INSERT_ACCOUNT,
+            DataAccess.INSERT_CREATE,
+            DataAccess.INSERT_MOVEMENT,
+            DataAccess.INSERT_TRANSFER,
+            DataAccess.UPDATE_BALANCE
+    };
+    private static final int ACCOUNT = 0, CREATE = 1, MOVEMENT = 2, TRANSFER = 3, UPDATE = 4;
+
+    // In asynchronous mode, writers flush by themselves once the buffer holds this many batches
+    private static final int MAX_BACKLOG = 4;
+
+    private final ConnectionPool pool;
+    private final PooledConnection pc;
+    private final PreparedStatement[] statements;
+    private final int[] batched;
+
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final boolean async;
+    private final ScheduledExecutorService writer;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable onFailure;
+    private volatile boolean failed;
+
+    // Guards the buffers. Appends only hold it while copying the values into the active buffer
+    private final ReentrantLock lock = new ReentrantLock();
+    // Serializes flushes, so that batches are committed in order
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private Buffer active;
+    private Buffer spare;
+    private Buffer inFlight;
+
+    /**
+     * Creates a group commit write path over a dedicated pooled connection
+     * @param pool - pool to take the connection from
+     * @param maxBatch - maximum number of statements per batch
+     * @param maxDelayMicros - maximum time a statement waits for its batch to be flushed
+     * @param async - if true, writes are committed in the background and afterCommit doesn't wait for them
+     * @param onFailure - called once, if some write can't be committed
+     * @throws SQLException
+     */
+    public GroupCommit(ConnectionPool pool, int maxBatch, long maxDelayMicros, boolean async, Runnable onFailure)
+            throws SQLException {
+        this.pool = pool;
+        this.onFailure = onFailure;
+        this.pc = pool.borrow();
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.async = async;
+        this.active = new Buffer(maxBatch);
+        this.spare = new Buffer(maxBatch);
+
+        Connection con = pc.getConnection();
+        con.setAutoCommit(false);
+        con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+        statements = new PreparedStatement[FLUSH_ORDER.length];
+        batched = new int[FLUSH_ORDER.length];
+        for(int i = 0; i < FLUSH_ORDER.length; i++)
+            statements[i] = pc.prepare(FLUSH_ORDER[i]);
+
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "group-commit");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Appends an account creation to the current batch
+     * @param account_id created account id
+     * @param balance initial balance
+     */
+    public void insertAccount(int account_id, int balance) {
+        append(ACCOUNT, account_id, balance, 0, 0, 0, 0);
+    }
+
+    /**
+     * Appends an account creation log entry to the current batch
+     * @param op_id logged operation id
+     * @param account_id logged account id
+     * @param balance logged balance
+     */
+    public void logCreate(int op_id, int account_id, int balance) {
+        append(CREATE, op_id, account_id, balance, 0, 0, 0);
+    }
+
+    /**
+     * Appends a movement log entry to the current batch
+     * @param op_id logged operation id
+     * @param mv_amount logged movement amount
+     * @param account_id logged account id
+     * @param final_balance logged final balance
+     */
+    public void logMovement(int op_id, int mv_amount, int account_id, int final_balance) {
+        append(MOVEMENT, op_id, mv_amount, account_id, final_balance, 0, 0);
+    }
+
+    /**
+     * Appends a transfer log entry to the current batch
+     * @param op_id logged operation id
+     * @param tr_amount logged transfer amount
+     * @param from_account logged withdrawn account
+     * @param to_account logged deposited account
+     * @param from_final_balance logged withdrawn account final balance
+     * @param to_final_balance logged deposited account final balance
+     */
+    public void logTransfer(int op_id, int tr_amount, int from_account, int to_account, int from_final_balance,
+                            int to_final_balance) {
+        append(TRANSFER, op_id, tr_amount, from_account, to_account, from_final_balance, to_final_balance);
+    }
+
+    /**
+     * Appends an account balance update to the current batch
+     * @param account_id account id to update
+     * @param final_amount new balance
+     */
+    public void updateBalance(int account_id, int final_amount) {
+        append(UPDATE, final_amount, account_id, 0, 0, 0, 0);
+    }
+
+    /**
+     * Runs the given action once every write appended so far is committed.
+     * If nothing is pending, or in asynchronous mode, the action runs immediately.
+     * Once a write failed, the action never runs
+     * @param action - action to be run
+     */
+    public void afterCommit(Runnable action) {
+        if(failed)
+            return;
+        if(!async) {
+            lock.lock();
+            try {
+                if(active.count > 0) {
+                    active.callbacks.add(action);
+                    return;
+                }
+                if(inFlight != null) {
+                    inFlight.callbacks.add(action);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        action.run();
+    }
+
+    /**
+     * @return - true if some write couldn't be committed
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Commits every pending write as a single transaction and runs the actions waiting for it,
+     * unless some write fails
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            Buffer batch;
+            lock.lock();
+            try {
+                if(active.count == 0) return;
+                batch = active;
+                active = spare;
+                spare = null;
+                inFlight = batch;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean committed = write(batch, 0, batch.count);
+            // Retries the writes one by one, committing those that don't fail
+            for(int r = 0; !committed && r < batch.count; r++)
+                if(!write(batch, r, r + 1))
+                    fail();
+
+            List<Runnable> done;
+            lock.lock();
+            try {
+                inFlight = null;
+                done = new ArrayList<>(batch.callbacks);
+                batch.clear();
+                spare = batch;
+            } finally {
+                lock.unlock();
+            }
+
+            if(!failed)
+                for(Runnable action : done)
+                    action.run();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Flushes everything that is pending and gives the connection back to the pool
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        try {
+            pc.getConnection().setAutoCommit(true);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        pool.release(pc);
+    }
+
+    private void append(int type, int a, int b, int c, int d, int e, int f) {
+        int count;
+        lock.lock();
+        try {
+            count = active.add(type, a, b, c, d, e, f);
+        } finally {
+            lock.unlock();
+        }
+
+        // The first write of a batch arms its delay timer
+        if(count == 1 && !writer.isShutdown())
+            writer.schedule(this::flushIfDue, maxDelayNanos, TimeUnit.NANOSECONDS);
+
+        if(count < maxBatch) return;
+
+        if(!async || count >= MAX_BACKLOG * maxBatch)
+            flush();
+        else if(flushScheduled.compareAndSet(false, true))
+            writer.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+    }
+
+    /**
+     * Binds a range of the writes in the buffer to their statements and commits them all, or none
+     * @param batch - buffer to be written
+     * @param from - first write (inclusive)
+     * @param to - last write (exclusive)
+     * @return - true if the writes were committed
+     */
+    private boolean write(Buffer batch, int from, int to) {
+        Connection con = pc.getConnection();
+        try {
+            for(int r = from; r < to; r++) {
+                int[] v = batch.values;
+                int o = r * Buffer.WIDTH;
+                int type = v[o];
+                PreparedStatement stmt = statements[type];
+                Timestamp ts = new Timestamp(batch.timestamps[r]);
+
+                switch(type) {
+                    case ACCOUNT:
+                        stmt.setInt(1, v[o + 1]);
+                        stmt.setInt(2, v[o + 2]);
+                        stmt.setTimestamp(3, ts);
+                        break;
+                    case CREATE:
+                        stmt.setInt(1, v[o + 1]);
+                        stmt.setInt(2, DataAccess.OP_TYPES.CREATE.ordinal()+1);
+                        stmt.setInt(3, v[o + 2]);
+                        stmt.setInt(4, v[o + 3]);
+                        stmt.setTimestamp(5, ts);
+                        break;
+                    case MOVEMENT:
+                        stmt.setInt(1, v[o + 1]);
+                        stmt.setInt(2, DataAccess.OP_TYPES.MOVEMENT.ordinal()+1);
+                        stmt.setInt(3, v[o + 2]);
+                        stmt.setInt(4, v[o + 3]);
+                        stmt.setInt(5, v[o + 4]);
+                        stmt.setTimestamp(6, ts);
+                        break;
+                    case TRANSFER:
+                        stmt.setInt(1, v[o + 1]);
+                        stmt.setInt(2, DataAccess.OP_TYPES.TRANSFER.ordinal()+1);
+                        stmt.setInt(3, v[o + 2]);
+                        stmt.setInt(4, v[o + 3]);
+                        stmt.setInt(5, v[o + 4]);
+                        stmt.setInt(6, v[o + 5]);
+                        stmt.setInt(7, v[o + 6]);
+                        stmt.setTimestamp(8, ts);
+                        break;
+                    case UPDATE:
+                        stmt.setInt(1, v[o + 1]);
+                        stmt.setInt(2, v[o + 2]);
+                        break;
+                }
+                stmt.addBatch();
+                batched[type]++;
+            }
+
+            for(int i = 0; i < statements.length; i++)
+                if(batched[i] > 0)
+                    statements[i].executeBatch();
+            con.commit();
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                for(PreparedStatement stmt : statements)
+                    stmt.clearBatch();
+                con.rollback();
+            } catch (SQLException e1) {
+                e1.printStackTrace();
+            }
+            return false;
+        } finally {
+            Arrays.fill(batched, 0);
+        }
+    }
+
+    private void fail() {
+        if(failed)
+            return;
+        failed = true;
+        System.out.println("GROUP COMMIT FAILED");
+        onFailure.run();
+    }
+
+    private void flushIfDue() {
+        boolean due;
+        lock.lock();
+        due = active.count > 0 && System.nanoTime() - active.oldest >= maxDelayNanos;
+        lock.unlock();
+
+        if(due) flush();
+    }
+
+    /**
+     * Pending writes, stored as rows of primitive values (statement type followed by its parameters)
+     * along with the time they were appended.
+     */
+    private static class Buffer {
+        static final int WIDTH = 7;
+
+        int[] values;
+        long[] timestamps;
+        int count;
+        long oldest;
+        final List<Runnable> callbacks = new ArrayList<>();
+
+        Buffer(int capacity) {
+            values = new int[WIDTH * capacity];
+            timestamps = new long[capacity];
+        }
+
+        int add(int type, int a, int b, int c, int d, int e, int f) {
+            if(count == timestamps.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+                timestamps = Arrays.copyOf(timestamps, timestamps.length * 2);
+            }
+            if(count == 0)
+                oldest = System.nanoTime();
+
+            int o = count * WIDTH;
+            values[o] = type;
+            values[o + 1] = a;
+            values[o + 2] = b;
+            values[o + 3] = c;
+            values[o + 4] = d;
+            values[o + 5] = e;
+            values[o + 6] = f;
+            timestamps[count] = System.currentTimeMillis();
+            return ++count;
+        }
+
+        void clear() {
+            count = 0;
+            callbacks.clear();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package data;
+
+/**
+ * Most recent operations of the recently queried accounts, kept in memory to answer latest queries.
+ * Each account gets a ring buffer of its last DEPTH operations, as primitive rows laid out as read by
+ * OperationCursor plus their timestamps. Buffers live in a CacheManager sized so that all of them fit in
+ * the configured memory cap, the CLOCK policy evicting the buffers of cold accounts first.
+ * A buffer answers a query for n operations if it holds at least n of them, or every operation of the account.
+ */
+public class HistoryCache {
+    // Operations kept per account. The cache is disabled if not positive
+    public static final int DEPTH = Integer.getInteger("bank.history.depth", 10);
+    // Memory used by every buffer together
+    private static final long MAX_BYTES = Long.getLong("bank.history.maxBytes", 16L << 20);
+
+    // Approximate size of a buffer: rows, timestamps and the object headers and fields
+    private static final int ENTRY_BYTES = DEPTH * (OperationCursor.WIDTH * 4 + 8) + 96;
+
+    private final CacheManager<Ring> cache;
+
+    public HistoryCache() {
+        cache = new CacheManager<>((int) Math.max(1, Math.min(Integer.MAX_VALUE, MAX_BYTES / ENTRY_BYTES)));
+    }
+
+    /**
+     * Records a new operation in the buffers of the accounts it touches, if cached.
+     * The operations of each account must be recorded in id order, those of different accounts may be recorded concurrently.
+     * Operations a buffer already holds are skipped, as a buffer filled from the database may hold operations
+     * committed but not recorded yet.
+     * @param row - array holding the operation
+     * @param o - offset of the operation in the array
+     * @param timestamp - time of the operation
+     */
+    public void record(int[] row, int o, long timestamp) {
+        Ring from = cache.get(row[o + OperationCursor.FROM]);
+        if(from != null)
+            from.add(row, o, timestamp);
+
+        if(row[o + OperationCursor.TYPE] == OperationCursor.TRANSFER
+                && row[o + OperationCursor.TO] != row[o + OperationCursor.FROM]) {
+            Ring to = cache.get(row[o + OperationCursor.TO]);
+            if(to != null)
+                to.add(row, o, timestamp);
+        }
+    }
+
+    /**
+     * Starts the buffer of a new account, which holds every operation of the account from then on
+     * @param account - account id
+     * @param row - array holding the account creation
+     * @param o - offset of the account creation in the array
+     * @param timestamp - time of the account creation
+     */
+    public void create(int account, int[] row, int o, long timestamp) {
+        Ring h = new Ring(account, true);
+        h.add(row, o, timestamp);
+        cache.add(h);
+    }
+
+    /**
+     * Caches the operations of an account read from the database
+     * @param account - account id
+     * @param rows - operations, newest first
+     * @param timestamps - time of each operation
+     * @param count - number of operations
+     * @param complete - true if they are every operation of the account
+     */
+    public void fill(int account, int[] rows, long[] timestamps, int count, boolean complete) {
+        Ring h = new Ring(account, complete);
+        for(int i = Math.min(count, DEPTH) - 1; i >= 0; i--)
+            h.add(rows, i * OperationCursor.WIDTH, timestamps[i]);
+        cache.add(h);
+    }
+
+    /**
+     * Copies the last n operations of an account, newest first
+     * @param account - account id
+     * @param n - number of operations
+     * @param rows - array to copy the operations into, WIDTH ints per operation
+     * @param timestamps - array to copy their timestamps into
+     * @return - number of operations copied, or -1 if the cache can't answer the query
+     */
+    public int latest(int account, int n, int[] rows, long[] timestamps) {
+        if(n > DEPTH)
+            return -1;
+        Ring h = cache.get(account);
+        return h == null ? -1 : h.latest(n, rows, timestamps);
+    }
+
+    @Override
+    public String toString() {
+        return "History " + cache.toString() + ", " + DEPTH + " operations each";
+    }
+
+    /**
+     * Ring buffer with the last DEPTH operations of an account
+     */
+    private static class Ring implements Cacheable {
+        private final int account;
+        private final int[] rows = new int[DEPTH * OperationCursor.WIDTH];
+        private final long[] timestamps = new long[DEPTH];
+        // Position of the next operation, and number of operations held
+        private int head;
+        private int size;
+        // True while the buffer holds every operation of the account
+        private boolean complete;
+
+        Ring(int account, boolean complete) {
+            this.account = account;
+            this.complete = complete;
+        }
+
+        @Override
+        public int getId() {
+            return account;
+        }
+
+        synchronized void add(int[] row, int o, long timestamp) {
+            if(size > 0 && row[o + OperationCursor.ID]
+                    <= rows[Math.floorMod(head - 1, DEPTH) * OperationCursor.WIDTH + OperationCursor.ID])
+                return;
+
+            System.arraycopy(row, o, rows, head * OperationCursor.WIDTH, OperationCursor.WIDTH);
+            timestamps[head] = timestamp;
+            head = (head + 1) % DEPTH;
+            if(size < DEPTH)
+                size++;
+            else
+                complete = false;
+        }
+
+        synchronized int latest(int n, int[] out, long[] outTimestamps) {
+            if(size < n && !complete)
+                return -1;
+
+            int count = Math.min(n, size);
+            for(int i = 0; i < count; i++) {
+                int slot = Math.floorMod(head - 1 - i, DEPTH);
+                System.arraycopy(rows, slot * OperationCursor.WIDTH, out, i * OperationCursor.WIDTH, OperationCursor.WIDTH);
+                outTimestamps[i] = timestamps[slot];
+            }
+            return count;
+        }
+    }
+}
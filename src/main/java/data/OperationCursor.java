@@ -0,0 +1,79 @@
+package data;
+
+import bank.History;
+import data.ConnectionPool.PooledConnection;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Forward-only, read-only cursor over a range of the operations table, read in pages.
+ * Operations are copied into primitive rows of WIDTH ints, so that reading any number of them
+ * allocates nothing besides the driver's fetch buffer.
+ * Holds a pooled connection until closed.
+ */
+public class OperationCursor implements AutoCloseable {
+    // Row layout, shared with the History results built from these rows
+    public static final int WIDTH = History.WIDTH;
+    public static final int TYPE = History.TYPE, ID = History.ID, AMOUNT = History.AMOUNT, FROM = History.FROM,
+            TO = History.TO, FROM_BALANCE = History.FROM_BALANCE, TO_BALANCE = History.TO_BALANCE;
+
+    // Operation types, as stored in the OP_TYPE column
+    public static final int MOVEMENT = DataAccess.OP_TYPES.MOVEMENT.ordinal() + 1;
+    public static final int TRANSFER = DataAccess.OP_TYPES.TRANSFER.ordinal() + 1;
+    public static final int CREATE = DataAccess.OP_TYPES.CREATE.ordinal() + 1;
+
+    private final ConnectionPool pool;
+    private final PooledConnection pc;
+    private final ResultSet res;
+
+    OperationCursor(ConnectionPool pool, String sql, int from, int to, int fetchSize) throws SQLException {
+        this.pool = pool;
+        this.pc = pool.borrow();
+        try {
+            PreparedStatement stmt = pc.prepare(sql);
+            stmt.setFetchSize(fetchSize);
+            stmt.setInt(1, from);
+            stmt.setInt(2, to);
+            res = stmt.executeQuery();
+        } catch (SQLException e) {
+            pool.release(pc);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next page of operations
+     * @param rows array to copy the operations into, WIDTH ints per operation
+     * @param max maximum number of operations to read
+     * @return number of operations read, 0 once the range is exhausted
+     * @throws SQLException
+     */
+    public int next(int[] rows, int max) throws SQLException {
+        int n = 0;
+        while(n < max && res.next()) {
+            int o = n * WIDTH;
+            rows[o + TYPE] = res.getInt(1);
+            rows[o + ID] = res.getInt(2);
+            rows[o + AMOUNT] = res.getInt(3);
+            rows[o + FROM] = res.getInt(4);
+            rows[o + TO] = res.getInt(5);
+            rows[o + FROM_BALANCE] = res.getInt(6);
+            rows[o + TO_BALANCE] = res.getInt(7);
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() {
+        try {
+            res.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(pc);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package data;
+
+import data.ConnectionPool.PooledConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the state received by a recovering replica with a pool of workers.
+ * Rows are partitioned by account id, each partition being written by one worker, on its own pooled connection,
+ * as a JDBC batch committed in a single transaction.
+ * Log rows only insert into the operations table (balances come from the snapshot), so a transfer goes to
+ * the partition of its withdrawn account and needs no coordination with the deposited one.
+ * Partitions commit independently: callers must treat a failed chunk as partially applied.
+ */
+public class RecoveryApplier {
+    private static final int THREADS = Integer.getInteger("bank.recovery.threads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final ConnectionPool pool;
+    private final BalanceStore balances;
+    private final int partitions;
+    private final ExecutorService workers;
+
+    // Recovery metrics
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong accounts = new AtomicLong();
+    private final AtomicLong applyNanos = new AtomicLong();
+
+    /**
+     * Creates an applier with THREADS workers
+     * @param pool - pool to take the worker connections from
+     * @param balances - in-memory balances, updated along with the accounts table
+     */
+    public RecoveryApplier(ConnectionPool pool, BalanceStore balances) {
+        this.pool = pool;
+        this.balances = balances;
+        this.partitions = Math.max(1, THREADS);
+        this.workers = Executors.newFixedThreadPool(partitions, r -> {
+            Thread t = new Thread(r, "recovery-apply");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Sets the balance of the given accounts, creating the ones that don't exist
+     * @param ids - account ids
+     * @param final_balances - balance of each account
+     * @return - true if every partition was committed
+     */
+    public boolean applyBalances(int[] ids, int[] final_balances) {
+        long start = System.nanoTime();
+        List<Callable<Boolean>> tasks = new ArrayList<>(partitions);
+        for(int p = 0; p < partitions; p++) {
+            int partition = p;
+            tasks.add(() -> writeBalances(ids, final_balances, partition));
+        }
+
+        boolean success = runAll(tasks);
+        applyNanos.addAndGet(System.nanoTime() - start);
+        if(success)
+            accounts.addAndGet(ids.length);
+        return success;
+    }
+
+    /**
+     * Logs the given operations with their ids. The accounts they reference must already exist.
+     * @param rows - operations, laid out as read by OperationCursor
+     * @return - true if every partition was committed
+     */
+    public boolean applyOperations(int[] rows) {
+        long start = System.nanoTime();
+        List<Callable<Boolean>> tasks = new ArrayList<>(partitions);
+        for(int p = 0; p < partitions; p++) {
+            int partition = p;
+            tasks.add(() -> writeOperations(rows, partition));
+        }
+
+        boolean success = runAll(tasks);
+        applyNanos.addAndGet(System.nanoTime() - start);
+        if(success)
+            operations.addAndGet(rows.length / OperationCursor.WIDTH);
+        return success;
+    }
+
+    /**
+     * Stops the workers
+     */
+    public void close() {
+        workers.shutdown();
+    }
+
+    /**
+     * @return - number of operations logged
+     */
+    public long getOperations() {
+        return operations.get();
+    }
+
+    /**
+     * @return - number of account balances set
+     */
+    public long getAccounts() {
+        return accounts.get();
+    }
+
+    /**
+     * @return - operations logged per second of apply time
+     */
+    public long getThroughput() {
+        long nanos = applyNanos.get();
+        return nanos == 0 ? 0 : operations.get() * 1000000000L / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("RECOVERY APPLY: ")
+                .append(operations.get()).append(" operations, ")
+                .append(accounts.get()).append(" accounts in ")
+                .append(TimeUnit.NANOSECONDS.toMillis(applyNanos.get())).append("ms (")
+                .append(getThroughput()).append(" ops/sec, ")
+                .append(partitions).append(" workers)")
+                .toString();
+    }
+
+    private int partitionOf(int account) {
+        return Math.floorMod(account, partitions);
+    }
+
+    private boolean runAll(List<Callable<Boolean>> tasks) {
+        boolean success = true;
+        try {
+            for(Future<Boolean> f : workers.invokeAll(tasks))
+                success &= f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return success;
+    }
+
+    /**
+     * Updates the accounts of one partition in a batch, then inserts the ones the update didn't find
+     */
+    private boolean writeBalances(int[] ids, int[] final_balances, int partition) throws SQLException {
+        PooledConnection pc = pool.borrow();
+        Connection con = pc.getConnection();
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement update = pc.prepare(DataAccess.UPDATE_BALANCE);
+            int[] batched = new int[ids.length];
+            int n = 0;
+            for(int i = 0; i < ids.length; i++) {
+                if(partitionOf(ids[i]) != partition)
+                    continue;
+                update.setInt(1, final_balances[i]);
+                update.setInt(2, ids[i]);
+                update.addBatch();
+                batched[n++] = i;
+            }
+            if(n == 0)
+                return true;
+
+            int[] updated = update.executeBatch();
+            PreparedStatement insert = pc.prepare(DataAccess.INSERT_ACCOUNT);
+            Timestamp ts = new Timestamp(System.currentTimeMillis());
+            boolean inserts = false;
+            for(int b = 0; b < n; b++) {
+                if(updated[b] > 0)
+                    continue;
+                insert.setInt(1, ids[batched[b]]);
+                insert.setInt(2, final_balances[batched[b]]);
+                insert.setTimestamp(3, ts);
+                insert.addBatch();
+                inserts = true;
+            }
+            if(inserts)
+                insert.executeBatch();
+            con.commit();
+
+            for(int b = 0; b < n; b++)
+                balances.put(ids[batched[b]], final_balances[batched[b]]);
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            rollback(pc);
+            return false;
+        } finally {
+            con.setAutoCommit(true);
+            pool.release(pc);
+        }
+    }
+
+    /**
+     * Inserts the log rows of one partition, one batch per operation type
+     */
+    private boolean writeOperations(int[] rows, int partition) throws SQLException {
+        PooledConnection pc = pool.borrow();
+        Connection con = pc.getConnection();
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement create = pc.prepare(DataAccess.INSERT_CREATE);
+            PreparedStatement movement = pc.prepare(DataAccess.INSERT_MOVEMENT);
+            PreparedStatement transfer = pc.prepare(DataAccess.INSERT_TRANSFER);
+            Timestamp ts = new Timestamp(System.currentTimeMillis());
+            int creates = 0, movements = 0, transfers = 0;
+
+            for(int o = 0; o < rows.length; o += OperationCursor.WIDTH) {
+                if(partitionOf(rows[o + OperationCursor.FROM]) != partition)
+                    continue;
+
+                int type = rows[o + OperationCursor.TYPE];
+                if(type == OperationCursor.MOVEMENT) {
+                    movement.setInt(1, rows[o + OperationCursor.ID]);
+                    movement.setInt(2, type);
+                    movement.setInt(3, rows[o + OperationCursor.AMOUNT]);
+                    movement.setInt(4, rows[o + OperationCursor.FROM]);
+                    movement.setInt(5, rows[o + OperationCursor.FROM_BALANCE]);
+                    movement.setTimestamp(6, ts);
+                    movement.addBatch();
+                    movements++;
+                } else if(type == OperationCursor.TRANSFER) {
+                    transfer.setInt(1, rows[o + OperationCursor.ID]);
+                    transfer.setInt(2, type);
+                    transfer.setInt(3, rows[o + OperationCursor.AMOUNT]);
+                    transfer.setInt(4, rows[o + OperationCursor.FROM]);
+                    transfer.setInt(5, rows[o + OperationCursor.TO]);
+                    transfer.setInt(6, rows[o + OperationCursor.FROM_BALANCE]);
+                    transfer.setInt(7, rows[o + OperationCursor.TO_BALANCE]);
+                    transfer.setTimestamp(8, ts);
+                    transfer.addBatch();
+                    transfers++;
+                } else {
+                    create.setInt(1, rows[o + OperationCursor.ID]);
+                    create.setInt(2, type);
+                    create.setInt(3, rows[o + OperationCursor.FROM]);
+                    create.setInt(4, rows[o + OperationCursor.FROM_BALANCE]);
+                    create.setTimestamp(5, ts);
+                    create.addBatch();
+                    creates++;
+                }
+            }
+
+            if(creates > 0) create.executeBatch();
+            if(movements > 0) movement.executeBatch();
+            if(transfers > 0) transfer.executeBatch();
+            con.commit();
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            rollback(pc);
+            return false;
+        } finally {
+            con.setAutoCommit(true);
+            pool.release(pc);
+        }
+    }
+
+    private static void rollback(PooledConnection pc) {
+        try {
+            pc.prepare(DataAccess.UPDATE_BALANCE).clearBatch();
+            pc.prepare(DataAccess.INSERT_ACCOUNT).clearBatch();
+            pc.prepare(DataAccess.INSERT_CREATE).clearBatch();
+            pc.prepare(DataAccess.INSERT_MOVEMENT).clearBatch();
+            pc.prepare(DataAccess.INSERT_TRANSFER).clearBatch();
+            pc.getConnection().rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
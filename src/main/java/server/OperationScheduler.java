@@ -0,0 +1,191 @@
+package server;
+
+import data.DataAccess;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Executes the totally ordered operations of a replica on the apply stage, off the delivery thread.
+ * Every operation declares the accounts it touches and only waits for the operations delivered before it
+ * that touch one of them: the last operation submitted for each account is kept, and a new one runs once
+ * those of its accounts are done. Operations on disjoint accounts run in parallel, conflicting ones in
+ * delivery order, so every replica reaches the same state.
+ * Operation and account ids are reserved when operations are submitted, in delivery order, so that they
+ * don't depend on which operation finishes first. A write that fails leaves its operation id unused.
+ * Operations that log nothing (ordered reads) run on the read stage instead, which also serves the reads
+ * sent directly to the replica. See Stage for the queue bounds and the backpressure policy.
+ * Submissions must all come from the delivery thread.
+ * See PartitionedScheduler for the alternative of routing operations to per-partition queues.
+ */
+class OperationScheduler {
+    // Number of apply threads. With 0, operations run on the delivery thread, as they are submitted
+    private static final int THREADS = Integer.getInteger("bank.executor.threads", 1);
+    // Operations waiting for an apply thread before delivery is held back
+    private static final int APPLY_QUEUE = Integer.getInteger("bank.server.applyQueue", 4096);
+    // Number of read threads. With 0, reads run on the thread that submits them
+    private static final int READ_THREADS =
+            Integer.getInteger("bank.server.readThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // Reads waiting for a read thread before delivery is held back
+    private static final int READ_QUEUE = Integer.getInteger("bank.server.readQueue", 1024);
+
+    private final DataAccess da;
+    private final Executor workers;
+    private final Stage reads;
+
+    // Last operation submitted for each account (removed once done, if still the last one)
+    private final Map<Integer, CompletableFuture<Object>> tails = new ConcurrentHashMap<>();
+    // Operation ids reserved by operations still running
+    private final TreeSet<Integer> running = new TreeSet<>();
+    // Every operation submitted and not done yet
+    private final Map<CompletableFuture<Object>, Boolean> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a scheduler with an apply stage of THREADS threads
+     * @param da - database access layer, used to reserve ids
+     */
+    OperationScheduler(DataAccess da) {
+        this(da, new Stage("apply", THREADS, APPLY_QUEUE));
+    }
+
+    /**
+     * Creates a scheduler running operations on the given executor
+     * @param da - database access layer, used to reserve ids
+     * @param workers - executor of the operations
+     */
+    OperationScheduler(DataAccess da, Executor workers) {
+        this.da = da;
+        this.workers = workers;
+        this.reads = new Stage("read", READ_THREADS, READ_QUEUE);
+    }
+
+    /**
+     * Creates the scheduler selected by the system properties: partitioned if bank.executor.partitions is set
+     * @param da - database access layer
+     * @return - operation scheduler
+     */
+    static OperationScheduler create(DataAccess da) {
+        return PartitionedScheduler.PARTITIONS > 0
+                ? new PartitionedScheduler(da, PartitionedScheduler.PARTITIONS)
+                : new OperationScheduler(da);
+    }
+
+    /**
+     * Reserves the id of the next account to be created
+     * @return - account id
+     */
+    int reserveAccountId() {
+        return da.reserveAccountId();
+    }
+
+    /**
+     * Reserves the id of the next operation to be logged. It must be passed to the submitted operation
+     * @return - operation id
+     */
+    synchronized int reserveOperationId() {
+        int id = da.reserveOperationId();
+        running.add(id);
+        return id;
+    }
+
+    /**
+     * Submits an operation, to run after the operations already submitted for any of its accounts
+     * @param accounts - accounts the operation reads or writes
+     * @param opId - operation id reserved for the operation, or -1 if it logs nothing
+     * @param operation - operation to be executed
+     * @return - future completed with the result of the operation (null if it fails)
+     */
+    CompletableFuture<Object> submit(int[] accounts, int opId, Supplier<Object> operation) {
+        CompletableFuture<?>[] previous = new CompletableFuture<?>[accounts.length];
+        int n = 0;
+        for(int account : accounts) {
+            CompletableFuture<Object> tail = tails.get(account);
+            if(tail != null)
+                previous[n++] = tail;
+        }
+
+        Supplier<Object> task = () -> execute(opId, operation);
+        Executor executor = opId < 0 ? reads : workers;
+
+        CompletableFuture<Object> f = n == 0
+                ? CompletableFuture.supplyAsync(task, executor)
+                : CompletableFuture.allOf(n == previous.length ? previous : Arrays.copyOf(previous, n))
+                        .thenApplyAsync(ignored -> task.get(), executor);
+
+        if(!f.isDone()) {
+            inFlight.put(f, Boolean.TRUE);
+            for(int account : accounts)
+                tails.put(account, f);
+            f.whenComplete((r, e) -> {
+                inFlight.remove(f);
+                for(int account : accounts)
+                    tails.remove(account, f);
+            });
+        }
+        return f;
+    }
+
+    /**
+     * @return - executor of the reads, ordered or not
+     */
+    Executor reads() {
+        return reads;
+    }
+
+    /**
+     * @return - queue depth and latency of each stage
+     */
+    String getMetrics() {
+        return workers instanceof Stage ? workers + "\n" + reads : reads.toString();
+    }
+
+    /**
+     * Waits for every submitted operation to be done
+     */
+    void drain() {
+        for(CompletableFuture<Object> f : inFlight.keySet())
+            f.join();
+    }
+
+    /**
+     * Waits for every submitted operation and read to be done, then stops the stage threads
+     */
+    void shutdown() {
+        drain();
+        if(workers instanceof Stage)
+            ((Stage) workers).shutdown();
+        reads.shutdown();
+    }
+
+    /**
+     * @return - id below which every operation has been applied (or left unused)
+     */
+    synchronized int getApplied() {
+        return running.isEmpty() ? da.getNextOperationId() : running.first();
+    }
+
+    /**
+     * Runs an operation and releases its operation id
+     * @param opId - operation id reserved for the operation, or -1
+     * @param operation - operation to be executed
+     * @return - result of the operation (null if it fails)
+     */
+    Object execute(int opId, Supplier<Object> operation) {
+        try {
+            return operation.get();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if(opId >= 0)
+                done(opId);
+        }
+    }
+
+    private synchronized void done(int opId) {
+        running.remove(opId);
+    }
+}
@@ -0,0 +1,133 @@
+package server;
+
+import data.DataAccess;
+
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Executes the totally ordered operations of a replica on per-partition single-threaded queues.
+ * Accounts are assigned to partitions by id hash, and every operation is queued, in delivery order, on the
+ * partition of its accounts. Each partition is the only writer of its accounts' balances and works on its
+ * own Derby connection, so partitions don't contend with each other.
+ * A transfer between two partitions is queued on both: the lower partition runs it once the higher one
+ * reaches it too, the higher one waiting until it is done. Since every queue is in delivery order, both
+ * partitions see their transfers in the same order and the handoff can't deadlock.
+ * Each partition is a Stage with a bounded queue, which always blocks delivery when full: running an operation
+ * on the delivery thread instead would overtake the operations queued before it on the partition.
+ */
+class PartitionedScheduler extends OperationScheduler {
+    // Number of partitions. Disabled if not positive
+    static final int PARTITIONS = Integer.getInteger("bank.executor.partitions", 0);
+    // Operations waiting on each partition before delivery is held back
+    private static final int PARTITION_QUEUE = Integer.getInteger("bank.server.partitionQueue", 1024);
+
+    private final Stage[] partitions;
+
+    /**
+     * Creates a scheduler with the given number of partitions, each working on its own Derby connection
+     * @param da - database access layer
+     * @param n - number of partitions
+     */
+    PartitionedScheduler(DataAccess da, int n) {
+        this(da, n, da::pinConnection);
+    }
+
+    /**
+     * Creates a scheduler with the given number of partitions
+     * @param da - database access layer
+     * @param n - number of partitions
+     * @param init - run by every partition thread before its first operation
+     */
+    PartitionedScheduler(DataAccess da, int n, Runnable init) {
+        super(da, Runnable::run);
+        partitions = new Stage[n];
+        for(int p = 0; p < n; p++)
+            partitions[p] = new Stage("partition-" + p, 1, PARTITION_QUEUE, Stage.Backpressure.BLOCK, init);
+    }
+
+    /**
+     * Queues an operation on the partition of its accounts, or hands it off between two partitions
+     * @param accounts - accounts the operation reads or writes (at most two)
+     * @param opId - operation id reserved for the operation, or -1 if it logs nothing
+     * @param operation - operation to be executed
+     * @return - future completed with the result of the operation (null if it fails)
+     */
+    @Override
+    CompletableFuture<Object> submit(int[] accounts, int opId, Supplier<Object> operation) {
+        int first = accounts.length > 0 ? partitionOf(accounts[0]) : 0;
+        int second = accounts.length > 1 ? partitionOf(accounts[1]) : first;
+
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                result.complete(execute(opId, operation));
+            } finally {
+                // execute only catches RuntimeExceptions: the result must be completed anyway, or the
+                // partition waiting for it in a handoff would never be released
+                if(!result.isDone())
+                    result.completeExceptionally(new IllegalStateException("Operation " + opId + " failed"));
+            }
+        };
+
+        if(first == second) {
+            partitions[first].execute(task);
+            return result;
+        }
+
+        CountDownLatch arrived = new CountDownLatch(1);
+        partitions[Math.max(first, second)].execute(() -> {
+            arrived.countDown();
+            try {
+                result.join();
+            } catch (CompletionException e) {
+                // Reported by the partition that ran the operation
+            }
+        });
+        partitions[Math.min(first, second)].execute(() -> {
+            try {
+                arrived.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            task.run();
+        });
+        return result;
+    }
+
+    /**
+     * Waits for every partition to run the operations queued so far
+     */
+    @Override
+    void drain() {
+        CompletableFuture<?>[] barriers = new CompletableFuture<?>[partitions.length];
+        for(int p = 0; p < partitions.length; p++)
+            barriers[p] = CompletableFuture.runAsync(() -> {}, partitions[p]);
+        CompletableFuture.allOf(barriers).join();
+    }
+
+    /**
+     * @return - queue depth and latency of each partition and of the read stage
+     */
+    @Override
+    String getMetrics() {
+        StringBuilder sb = new StringBuilder();
+        for(Stage partition : partitions)
+            sb.append(partition).append('\n');
+        return sb.append(reads()).toString();
+    }
+
+    /**
+     * Waits for every partition to run the operations queued so far, then stops the partition threads
+     */
+    @Override
+    void shutdown() {
+        super.shutdown();
+        for(Stage partition : partitions)
+            partition.shutdown();
+    }
+
+    private int partitionOf(int account) {
+        return Math.floorMod(account, partitions.length);
+    }
+}
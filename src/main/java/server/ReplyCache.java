@@ -0,0 +1,177 @@
+package server;
+
+import communication.Packet;
+
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Results of the writes executed for each client, so that a request resent after a timeout is answered
+ * with the stored result instead of being executed again.
+ * Requests are grouped in sessions by client, each keeping the results of its last PER_CLIENT requests.
+ * A client is the group member address the request came from along with its stub id (the high half of the
+ * packet id): stub ids are random, so two stubs may pick the same one, but not from the same address.
+ * A session expires once SESSION_OPS operations were logged since its last request.
+ * Ages are measured in operation ids rather than time, so that every replica evicts the same entries at the
+ * same point of the total order, and the whole cache is sent to recovering replicas along with the state.
+ * Only used from the delivery thread.
+ */
+class ReplyCache {
+    // Requests remembered per client. Should be at least bank.stub.maxOutstanding, so that no request is
+    // forgotten while its client may still resend it
+    private static final int PER_CLIENT = Integer.getInteger("bank.dedup.perClient", 4096);
+    // Operations after which an idle client session expires
+    private static final int SESSION_OPS = Integer.getInteger("bank.dedup.sessionOps", 100000);
+
+    // Sessions by client, least recently active first
+    private final LinkedHashMap<Client, Session> sessions = new LinkedHashMap<>();
+
+    /**
+     * @param sender - address the request came from
+     * @param requestId - request packet id
+     * @return - result of the request, or null if it wasn't executed (or was forgotten)
+     */
+    CompletableFuture<Object> get(SocketAddress sender, long requestId) {
+        Session s = sessions.get(new Client(sender, stubOf(requestId)));
+        return s == null ? null : s.results.get(msgOf(requestId));
+    }
+
+    /**
+     * Stores the result of a request, expiring the sessions idle for longer than SESSION_OPS
+     * @param sender - address the request came from
+     * @param requestId - request packet id
+     * @param result - result of the request
+     * @param clock - next operation id when the request was delivered
+     */
+    void put(SocketAddress sender, long requestId, CompletableFuture<Object> result, int clock) {
+        expire(clock);
+        // Moves the session to the end, keeping sessions sorted by their last request
+        Client client = new Client(sender, stubOf(requestId));
+        Session s = sessions.remove(client);
+        if(s == null)
+            s = new Session();
+        sessions.put(client, s);
+        s.last = clock;
+        s.results.put(msgOf(requestId), result);
+    }
+
+    /**
+     * @return - number of requests remembered
+     */
+    int size() {
+        int n = 0;
+        for(Session s : sessions.values())
+            n += s.results.size();
+        return n;
+    }
+
+    /**
+     * Copies every entry, least recently active session first. Results must all be complete
+     * @return - request ids, senders, results and the clock of each entry's session
+     */
+    Snapshot snapshot() {
+        Snapshot snap = new Snapshot(size());
+        int i = 0;
+        for(Map.Entry<Client, Session> e : sessions.entrySet()) {
+            for(Map.Entry<Integer, CompletableFuture<Object>> r : e.getValue().results.entrySet()) {
+                snap.requests[i] = Packet.buildId(e.getKey().stub, r.getKey());
+                snap.senders[i] = e.getKey().address;
+                snap.replies[i] = r.getValue().join();
+                snap.clocks[i] = e.getValue().last;
+                i++;
+            }
+        }
+        return snap;
+    }
+
+    /**
+     * Replaces the cache with the entries of a snapshot
+     * @param requests - request ids
+     * @param senders - address each request came from
+     * @param replies - result of each request
+     * @param clocks - clock of each entry's session
+     */
+    void restore(long[] requests, SocketAddress[] senders, Object[] replies, int[] clocks) {
+        sessions.clear();
+        for(int i = 0; i < requests.length; i++) {
+            Session s = sessions.computeIfAbsent(new Client(senders[i], stubOf(requests[i])), k -> new Session());
+            s.last = clocks[i];
+            s.results.put(msgOf(requests[i]), CompletableFuture.completedFuture(replies[i]));
+        }
+    }
+
+    private void expire(int clock) {
+        Iterator<Session> it = sessions.values().iterator();
+        while(it.hasNext() && clock - it.next().last > SESSION_OPS)
+            it.remove();
+    }
+
+    private static int stubOf(long requestId) {
+        return (int) (requestId >>> 32);
+    }
+
+    private static int msgOf(long requestId) {
+        return (int) requestId;
+    }
+
+    /**
+     * Copy of the cache, as sent to a recovering replica
+     */
+    static class Snapshot {
+        final long[] requests;
+        final SocketAddress[] senders;
+        final Object[] replies;
+        final int[] clocks;
+
+        Snapshot(int n) {
+            requests = new long[n];
+            senders = new SocketAddress[n];
+            replies = new Object[n];
+            clocks = new int[n];
+        }
+    }
+
+    /**
+     * Client a session belongs to
+     */
+    private static final class Client {
+        final SocketAddress address;
+        final int stub;
+
+        Client(SocketAddress address, int stub) {
+            this.address = address;
+            this.stub = stub;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Client))
+                return false;
+            Client c = (Client) o;
+            return stub == c.stub && address.equals(c.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * address.hashCode() + stub;
+        }
+    }
+
+    /**
+     * Results of the last requests of a client
+     */
+    private static class Session {
+        // Next operation id when the client's last request was delivered
+        int last;
+        final LinkedHashMap<Integer, CompletableFuture<Object>> results =
+                new LinkedHashMap<Integer, CompletableFuture<Object>>() {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, CompletableFuture<Object>> eldest) {
+                        return size() > PER_CLIENT;
+                    }
+                };
+    }
+}
@@ -2,53 +2,138 @@ package server;
 
 import bank.Bank;
 import bank.BankImpl;
-import bank.BankOperation;
 
+import communication.Batch;
 import communication.Invocation;
 import communication.Packet;
+import communication.Read;
+import communication.StateAck;
+import communication.StateChunk;
 import data.DataAccess;
+import data.OperationCursor;
 
 import net.sf.jgcs.*;
 import net.sf.jgcs.annotation.PointToPoint;
 import net.sf.jgcs.jgroups.JGroupsGroup;
 import net.sf.jgcs.jgroups.JGroupsProtocolFactory;
 import net.sf.jgcs.jgroups.JGroupsService;
+import net.sf.jgcs.membership.MembershipListener;
+import net.sf.jgcs.membership.MembershipSession;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.security.SecureRandom;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by joaorodrigues on 14 Apr 16.
  */
-public class Server implements MessageListener{
+public class Server implements MessageListener, MembershipListener {
     public static final String GROUP_NAME = "BankSystem";
 
-    private String bankId;
-    private Bank bank;
+    // Group commit configuration. Writes are committed in batches of up to GROUP_COMMIT_SIZE statements,
+    // or once the oldest one has waited GROUP_COMMIT_DELAY microseconds. Replies are only sent after the commit.
+    // A size of 1 or less disables group commit (every statement is committed on its own)
+    private static final int GROUP_COMMIT_SIZE = Integer.getInteger("bank.groupCommit.size", 0);
+    private static final long GROUP_COMMIT_DELAY = Long.getLong("bank.groupCommit.delayMicros", 500);
+
+    // In-memory state machine mode. Every balance is kept in memory and requests are answered from there,
+    // while a background writer persists the operations in batches (of GROUP_COMMIT_SIZE, 1024 by default).
+    // Replies don't wait for the writes: durability relies on the other replicas of the group
+    private static final boolean IN_MEMORY = Boolean.getBoolean("bank.inMemory");
+    private static final int IN_MEMORY_BATCH = 1024;
+
+    // Reply mode. With ALL (default), every replica replies to every request.
+    // With DESIGNATED, only one replica replies to each request, chosen by hashing the request id over the
+    // replicas that announced themselves with JOIN. Replicas drop out of the set when they leave the view
+    private static final boolean DESIGNATED_REPLIES = "DESIGNATED".equalsIgnoreCase(System.getProperty("bank.replies"));
+    // Number of suppressed replies kept to be sent by the next designated replica if the designated one leaves
+    private static final int SUPPRESSED_REPLIES = 4096;
+
+    // Interval between prints of the stage and connection pool metrics. Disabled if not positive
+    private static final long METRICS_INTERVAL = Long.getLong("bank.metrics.intervalMillis", 0);
+
+    private int bankId;
+    private BankImpl bank;
     private int msgId;
 
     private String dbName;
 
     // Pending Requests during recovery
     private final Queue<Message> pendingRequests = new LinkedList<>();
+    // Reads waiting for this replica to reach their watermark, lowest watermark first
+    private final Queue<DeferredRead> deferredReads = new PriorityQueue<>();
     // Indicates whether or not we should ask for the group for the current state
     private boolean recover;
     // Indicates whether or not we are discarding messages
     private boolean discard;
 
+    // Recovery progress: first operation we were missing, first operation still missing from our log,
+    // replica streaming the state to us and whether it has sent all of it
+    private int recoveryFromOpId;
+    private int recoveryLogOpId;
+    private int recoveryNextOpId;
+    private long recoveryStart;
+    private SocketAddress donor;
+    private boolean transferComplete;
+
+    // State transfers this replica is streaming to recovering ones, by state request id
+    private final Map<Long, StateTransfer> transfers = new ConcurrentHashMap<>();
+    private final ExecutorService transferExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "state-transfer");
+        t.setDaemon(true);
+        return t;
+    });
+
     // Saving the current db connection
     // We need to save it in the server since we must communicate with it
     // for recovery mode logic. Bank implementation should be clear of this logic
     private DataAccess da;
+    // Runs the ordered operations, in parallel when they touch different accounts
+    private OperationScheduler scheduler;
+    // Results of the clients' latest writes, returned when a request is resent
+    private final ReplyCache replyCache = new ReplyCache();
+
+    // Lifecycle. Once stopping, delivered messages are dropped; stopped is released once the replica left the group.
+    // Message delivery, membership changes, start and stop all hold the lifecycle lock, so the group state
+    // (replicas, expectedReplicas, suppressed, view, msgId and the recovery progress) is only ever used by one
+    // of those threads at a time
+    private final Object lifecycle = new Object();
+    private volatile boolean stopping;
+    private final CountDownLatch stopped = new CountDownLatch(1);
 
     // JGroups Variables
+    private ControlSession control;
     private DataSession data;
     private Service service;
+    private MembershipSession membership;
+    private SocketAddress localAddress;
+    private List<SocketAddress> view;
+
+    // Replicas that announced themselves, sorted by address so that every replica designates the same one
+    private final TreeMap<String, SocketAddress> replicas = new TreeMap<>();
+    // Number of replicas the group had when this one joined. Until they have all been announced to us,
+    // we can't tell which replica is designated and reply to everything
+    private int expectedReplicas;
+    // Replies are not sent while draining requests queued during recovery: the group already replied to them
+    private boolean draining;
+    // Replies that were left to other replicas, by request id (oldest first)
+    private final LinkedHashMap<Long, SuppressedReply> suppressed = new LinkedHashMap<Long, SuppressedReply>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, SuppressedReply> eldest) {
+            return size() > SUPPRESSED_REPLIES;
+        }
+    };
 
     /**
-     * Creates a new BankServer
+     * Creates a new BankServer, which only joins the group once started
      * If no other BankServer has been created, false should be passed
      * as the argument. Otherwise, the server will enter recovery mode.
      * @param name - database name
@@ -57,22 +142,25 @@ public class Server implements MessageListener{
      * @throws InterruptedException
      */
     public Server(String name, boolean recover) throws IOException, InterruptedException, SQLException {
-        this.bankId = (new java.rmi.dgc.VMID()).toString();
-        this.recover = recover;
+        this.bankId = new SecureRandom().nextInt();
         this.dbName = name;
+        getDataAccess();
+        // The replica can't go on once its database diverged from its memory. Stopped from another thread,
+        // since the failed commit may be running on the delivery thread or on one that stop waits for
+        da.onWriteFailure(() -> new Thread(this::stop, "shutdown").start());
+        this.scheduler = OperationScheduler.create(da);
+
+        // A recovery interrupted by a crash is resumed, otherwise the replica would serve a partial state
+        this.recover = recover || da.getMetadata(DataAccess.RECOVERY_FROM, -1) >= 0;
 
         // If we are in recovery, we must start by discarding
         // If we are not, it doesn't really matter the value of discard
-        this.discard = recover;
+        this.discard = this.recover;
 
         // We only create the bank with a brand new database when not recovering
         // Otherwise the bank will be created based on a status update
-        if(!recover)
-            this.bank = new BankImpl(getDataAccess());
-        else
-            getDataAccess();
-
-        setUpConnection();
+        if(!this.recover)
+            this.bank = new BankImpl(da);
     }
 
     /**
@@ -84,12 +172,17 @@ public class Server implements MessageListener{
 
         service = new JGroupsService();
         Protocol p = pf.createProtocol();
-        ControlSession control = p.openControlSession(gc);
+        control = p.openControlSession(gc);
         data = p.openDataSession(gc);
 
 
         data.setMessageListener(this);
+        if(control instanceof MembershipSession) {
+            membership = (MembershipSession) control;
+            membership.setMembershipListener(this);
+        }
         control.join();
+        localAddress = control.getLocalAddress();
     }
 
 
@@ -101,77 +194,208 @@ public class Server implements MessageListener{
     public DataAccess getDataAccess() throws SQLException {
         da = new DataAccess();
         da.initEDBConnection(dbName);
+        if(IN_MEMORY)
+            da.enableInMemory(GROUP_COMMIT_SIZE > 1 ? GROUP_COMMIT_SIZE : IN_MEMORY_BATCH, GROUP_COMMIT_DELAY);
+        else if(GROUP_COMMIT_SIZE > 1)
+            da.enableGroupCommit(GROUP_COMMIT_SIZE, GROUP_COMMIT_DELAY);
         return da;
     }
 
     /**
-     * Sets the bank state to the received value and processes queued messages
-     * @param transactions - set of transactions with ids larger than this bank's id
+     * Asks the group for the state this replica is missing.
+     * Messages are discarded until the request is delivered back to us, since the state will include them
+     * @throws IOException
+     */
+    private void requestState() throws IOException {
+        discard = true;
+        donor = null;
+        transferComplete = false;
+        pendingRequests.clear();
+        // Operations of a chunk that wasn't fully applied, which the donor will send again
+        da.discardOperationsFrom(recoveryLogOpId);
+        sendRequest(Invocation.STATE, recoveryFromOpId, recoveryLogOpId);
+        System.out.println("STATE REQUEST SENT");
+    }
+
+    /**
+     * Applies a chunk of the state streamed by the donor and acknowledges it
+     * @param p - packet holding the chunk
+     * @param sender - address of the donor
+     * @throws IOException
+     */
+    private void applyStateChunk(Packet p, SocketAddress sender) throws IOException {
+        // Only one donor is followed, should more than one replica consider itself designated
+        if(donor == null)
+            donor = sender;
+        else if(!donor.equals(sender))
+            return;
+
+        StateChunk chunk = (StateChunk) p.getContent();
+        if(chunk.getAccounts().length > 0 && !da.recoverBalances(chunk.getAccounts(), chunk.getBalances())) {
+            System.out.println("RECOVERY FAILED");
+            return;
+        }
+        int[] operations = chunk.getOperations();
+        if(operations.length > 0) {
+            // Also moves the persisted log watermark, so a crash from now on resumes after this chunk
+            if(!da.recoverOperations(operations)) {
+                System.out.println("RECOVERY FAILED");
+                return;
+            }
+            recoveryLogOpId = operations[operations.length - OperationCursor.WIDTH + OperationCursor.ID] + 1;
+        }
+
+        reply(new Packet(p.getId(), new StateAck(chunk.getSeq())), sender);
+
+        if(chunk.isLast()) {
+            recoveryNextOpId = chunk.getNext();
+            replyCache.restore(chunk.getRequests(), chunk.getSenders(), chunk.getReplies(), chunk.getClocks());
+            transferComplete = true;
+            if(!discard)
+                recover();
+        }
+    }
+
+    /**
+     * Finishes the recovery once the whole state has been applied, processing queued messages
      * @throws IOException
-     * @throws ClassNotFoundException
      */
-    private void recover(DataAccess da, ArrayList<BankOperation> transactions) throws IOException, ClassNotFoundException, SQLException {
-        this.bank = new BankImpl(da, transactions);
+    private void recover() throws IOException {
+        da.refreshCurrentAccountId();
+        da.refreshCurrentOperationId();
+        // Ids left unused by failed writes at the donor are skipped as well
+        da.advanceOperationId(recoveryNextOpId);
+        da.deleteMetadata(DataAccess.RECOVERY_FROM, DataAccess.RECOVERY_LOG);
+        System.out.println(da.endRecovery());
+        this.bank = new BankImpl(da);
+        msgId++;
 
         Message queued;
+        draining = true;
         while (!pendingRequests.isEmpty()) {
             queued = pendingRequests.remove();
-            handle(queued);
+            handle(new Packet(queued.getPayload()), queued.getSenderAddress());
         }
+        draining = false;
 
         recover = false;
-        System.out.println("FINISHED RECOVERY");
+        handleDeferredReads();
+        announce(0);
+        System.out.println("FINISHED RECOVERY IN " + (System.nanoTime() - recoveryStart) / 1000000 + "ms");
     }
 
     /**
-     * Runs the server
+     * Joins the group and starts serving, asking the group for the missing state first if recovering.
+     * After a clean stop, the missing state is asked from the checkpointed operation id
      * @throws IOException
-     * @throws InterruptedException
      */
-    public void work() throws IOException, InterruptedException {
+    public void start() throws IOException {
+        // The checkpoint is only valid until the replica applies anything else
+        int checkpoint = da.getMetadata(DataAccess.CHECKPOINT, -1);
         if(recover) {
-            sendRequest(Invocation.STATE, da.getCurrentOperationId());
-            System.out.println("STATE REQUEST SENT");
+            // Resumes an interrupted recovery: the snapshot is sent again, but the log only from where it stopped
+            recoveryFromOpId = da.getMetadata(DataAccess.RECOVERY_FROM, -1);
+            if(recoveryFromOpId < 0) {
+                recoveryFromOpId = checkpoint >= 0 ? checkpoint : da.getCurrentOperationId();
+                da.setMetadata(DataAccess.RECOVERY_FROM, recoveryFromOpId);
+            }
+            da.deleteMetadata(DataAccess.CHECKPOINT);
+            recoveryLogOpId = da.getMetadata(DataAccess.RECOVERY_LOG, recoveryFromOpId);
+            recoveryStart = System.nanoTime();
+            setUpConnection();
+            synchronized (lifecycle) {
+                requestState();
+            }
+        } else {
+            // Ids left unused before the stop are skipped, as the rest of the group did
+            if(checkpoint >= 0) {
+                da.advanceOperationId(checkpoint);
+                da.deleteMetadata(DataAccess.CHECKPOINT);
+            }
+            setUpConnection();
+            synchronized (lifecycle) {
+                announce(0);
+            }
         }
+    }
 
-        // Waits in a non-blocking manner forever
-        while(true){
-            try {
-                Thread.sleep(100000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Stops the server: stops handling messages, waits for every operation already delivered to be applied,
+     * checkpoints the next operation id, shuts the database down and leaves the group.
+     * A replica stopped while recovering keeps its recovery progress instead of a checkpoint, and one whose
+     * writes failed gets none: it must recover its state from the group
+     */
+    public void stop() {
+        synchronized (lifecycle) {
+            if(stopping)
+                return;
+            stopping = true;
         }
+
+        scheduler.shutdown();
+        transferExecutor.shutdownNow();
+        if(!recover) {
+            da.flush();
+            if(!da.hasWriteFailed())
+                da.setMetadata(DataAccess.CHECKPOINT, da.getNextOperationId());
+        }
+        da.shutdown();
+
+        try {
+            if(control != null)
+                control.leave();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("STOPPED");
+        stopped.countDown();
+    }
+
+    /**
+     * Waits until the server is stopped, printing the metrics every METRICS_INTERVAL if enabled
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        long interval = METRICS_INTERVAL > 0 ? METRICS_INTERVAL : Long.MAX_VALUE;
+        while(!stopped.await(interval, TimeUnit.MILLISECONDS))
+            System.out.println(scheduler.getMetrics() + "\n" + da.getPoolMetrics() + "\n" + da.getCacheMetrics());
+    }
+
+    /**
+     * Runs the server until it is stopped
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void work() throws IOException, InterruptedException {
+        start();
+        await();
     }
 
     /**
      * Handle a message in recovery mode.
      * Decides if we should update our state, save the message or discard it
      * @param m - received message
+     * @param p - packet carried by the message
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    private void handleRecovery(Message m) throws IOException, ClassNotFoundException, SQLException {
-        Packet p = new Packet(m.getPayload());
+    private void handleRecovery(Message m, Packet p) throws IOException, ClassNotFoundException, SQLException {
         Object content = p.getContent();
 
         // If we received an expected message
-        if(p.getId().equals(buildPacketId())) {
-            // It's either our own first message or a status update
+        if(p.getId() == buildPacketId()) {
+            // It's either our own state request or a chunk of the state
             // If it's our own
             if(content instanceof Invocation) {
                 // We stop discarding messages and start saving them
                 discard = false;
-            } else {
-                // If it's by other server, it's a status update
-                // We only update the message id here because otherwise we would never
-                // get the correct reply. Updating it after we received a
-                // correct reply also means we will ignore repeated replies from
-                // multiple servers
-                msgId++;
-                recover(da, (ArrayList<BankOperation>) content);
+                // The state may have been fully streamed before our request was delivered back to us
+                if(transferComplete)
+                    recover();
+            } else if(content instanceof StateChunk) {
+                applyStateChunk(p, m.getSenderAddress());
             }
-        } else {
+        } else if(!(content instanceof StateChunk)) {
             // If we received an unexpected message
             // We either save it or discard it
             if(!discard)
@@ -180,58 +404,365 @@ public class Server implements MessageListener{
     }
 
     /**
-     * Makes the interface between a remote invocation and the underlying bank
-     * @param command - command to be invoked
-     * @param args - command arguments
-     * @return
+     * Executes a read-only invocation on the underlying bank
+     * @param i - typed invocation
+     * @return - reply to the invocation
      */
-    private Object handleInvocation(String command, Object[] args) {
-        Object reply = null;
-
-        switch(command) {
-            case Invocation.CREATE:
-                reply = bank.create();
-                break;
-            case Invocation.BALANCE:
-                reply = bank.balance((String)args[0]);
-                break;
-            case Invocation.MOVEMENT:
-                reply = bank.movement((String)args[0], (int)args[1]);
-                break;
-            case Invocation.STATE:
-                System.out.println("NEW SERVER JOINED. RECEIVED STATE REQUEST");
-                reply = getOperationsAfter((int) args[0]);
-                System.out.println("RETRIEVED REQUESTED OPERATIONS");
-                break;
-            case Invocation.TRANSFER:
-                reply = bank.transfer( (String) args[0], (String) args[1], (int) args[2]);
-                break;
-            case Invocation.LATEST:
-                reply = bank.latest((String)args[0], (int)args[1]);
-                break;
+    private Object read(Invocation i) {
+        switch(i.getOpcode()) {
+            case Invocation.OP_BALANCE:
+                return bank.balance(i.getAccount());
+            case Invocation.OP_LATEST:
+                return bank.latest(i.getAccount(), i.getAmount());
+            case Invocation.OP_HISTORY:
+                return bank.history(i.getAccount(), i.getAmount());
+            case Invocation.OP_SYNC:
+                return da.getNextOperationId();
             default:
-                reply = null;
+                return null;
+        }
+    }
+
+    /**
+     * Submits an invocation to the scheduler, reserving the ids it needs in delivery order.
+     * Invocations are dispatched on their opcode and typed arguments. Those sent in the generic form are
+     * converted first, and fail without effect if their arguments aren't ints.
+     * @param i - invocation to be executed
+     * @return - future completed with the invocation result
+     */
+    private CompletableFuture<Object> dispatch(Invocation i) {
+        if(!i.isTyped()) {
+            i = Invocation.of(i.getCommand(), i.getArgs());
+            if(!i.isTyped())
+                return CompletableFuture.completedFuture(null);
+        }
+
+        switch(i.getOpcode()) {
+            case Invocation.OP_CREATE: {
+                int accountId = scheduler.reserveAccountId();
+                int opId = scheduler.reserveOperationId();
+                return scheduler.submit(new int[] {accountId}, opId, () -> {
+                    int account = bank.create(accountId, opId);
+                    return account == Bank.NO_ACCOUNT ? null : Integer.toString(account);
+                });
+            }
+            case Invocation.OP_MOVEMENT: {
+                int opId = scheduler.reserveOperationId();
+                int account = i.getAccount(), amount = i.getAmount();
+                return scheduler.submit(new int[] {account}, opId, () -> bank.movement(opId, account, amount));
+            }
+            case Invocation.OP_TRANSFER: {
+                int opId = scheduler.reserveOperationId();
+                int from = i.getAccount(), to = i.getTarget(), amount = i.getAmount();
+                return scheduler.submit(new int[] {from, to}, opId, () -> bank.transfer(opId, from, to, amount));
+            }
+            case Invocation.OP_SYNC:
+                return CompletableFuture.completedFuture(da.getNextOperationId());
+            default: {
+                Invocation r = i;
+                return scheduler.submit(new int[] {r.getAccount()}, -1, () -> read(r));
+            }
         }
+    }
 
-        return reply;
+    /**
+     * Dispatches an invocation, unless it is a write that was already executed, whose stored result is
+     * returned instead
+     * @param sender - address the request came from
+     * @param requestId - request packet id
+     * @param i - invocation to be executed
+     * @return - future completed with the invocation result
+     */
+    private CompletableFuture<Object> execute(SocketAddress sender, long requestId, Invocation i) {
+        if(i.isReadOnly() || i.getOpcode() == Invocation.OP_SYNC)
+            return dispatch(i);
+
+        CompletableFuture<Object> result = replyCache.get(sender, requestId);
+        if(result == null) {
+            int clock = da.getNextOperationId();
+            result = dispatch(i);
+            replyCache.put(sender, requestId, result, clock);
+        }
+        return result;
     }
 
     /**
-     * Handles a message when not in recovery
-     * @param m - Received message
+     * Handles a totally ordered message when not in recovery
+     * @param p - Received packet
+     * @param sender - Address of the packet sender
      */
-    private void handle(Message m) throws IOException {
-        Packet p = new Packet(m.getPayload());
+    private void handle(Packet p, SocketAddress sender) throws IOException {
         Object o = p.getContent();
 
         // This method is only invoked when we are not in recovery
         // So, we only handle invocations.
         // This prevents that we process repeated replies
         // for our recovery request
-        if(o instanceof Invocation){
-            Invocation i = (Invocation)o;
-            Object attachment = handleInvocation(i.getCommand(), i.getArgs());
-            reply(new Packet(p.getId(), attachment), m.getSenderAddress());
+        CompletableFuture<Packet> reply;
+        if(o instanceof Invocation && ((Invocation) o).getOpcode() == Invocation.OP_JOIN) {
+            handleJoin(sender, (int) ((Invocation) o).getArgs()[0]);
+            return;
+        } else if(o instanceof Invocation && ((Invocation) o).getOpcode() == Invocation.OP_STATE) {
+            Object[] args = ((Invocation) o).getArgs();
+            // Replicas of the previous version ask for their state with a single argument, and can't be served
+            if(args.length < 2)
+                return;
+            startStateTransfer(p.getId(), sender, (int) args[0], (int) args[1]);
+            return;
+        } else if(o instanceof Invocation){
+            CompletableFuture<Object> result = execute(sender, p.getId(), (Invocation) o);
+            // Taken in delivery order, so that it's the same on every replica
+            int watermark = da.getNextOperationId();
+            reply = result.thenApply(attachment -> p.reply(attachment, watermark));
+        } else if(o instanceof Batch && ((Batch) o).isRequest()) {
+            // Batched invocations are submitted in order and answered with a single batched reply
+            Batch b = (Batch) o;
+            long[] ids = new long[b.size()];
+            CompletableFuture<?>[] results = new CompletableFuture<?>[b.size()];
+            for(int j = 0; j < b.size(); j++) {
+                ids[j] = b.getId(j);
+                results[j] = execute(sender, ids[j], (Invocation) b.getItem(j));
+            }
+            int watermark = da.getNextOperationId();
+            reply = CompletableFuture.allOf(results).thenApply(done -> {
+                Object[] replies = new Object[results.length];
+                for(int j = 0; j < results.length; j++)
+                    replies[j] = results[j].join();
+                return p.reply(new Batch(ids, replies), watermark);
+            });
+        } else {
+            return;
+        }
+
+        // Deferred reads may be waiting for this operation
+        reply.thenRun(this::handleDeferredReads);
+
+        if(!shouldReply(p.getId())) {
+            if(!draining && DESIGNATED_REPLIES)
+                suppressed.put(p.getId(), new SuppressedReply(reply, sender, designated(p.getId(), null)));
+            return;
+        }
+
+        // The reply is only sent once the invocation's writes are committed
+        reply.thenAccept(packet -> da.afterCommit(() -> {
+            try {
+                reply(packet, sender);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+    }
+
+    /**
+     * Announces this replica to the group, so that it can be designated to reply
+     * @param known - 0 for a first announcement, or the number of replicas known when re-announcing to a new one
+     * @throws IOException
+     */
+    private void announce(int known) throws IOException {
+        sendRequest(Invocation.JOIN, known);
+        msgId++;
+    }
+
+    /**
+     * Adds an announced replica to the replica set.
+     * When a new replica announces itself, every replica already in the set re-announces itself,
+     * so that the new one learns about them.
+     * @param replica - address of the announced replica
+     * @param known - 0 for a first announcement, otherwise the number of replicas known by the sender
+     * @throws IOException
+     */
+    private void handleJoin(SocketAddress replica, int known) throws IOException {
+        boolean added = replicas.put(replica.toString(), replica) == null;
+        expectedReplicas = Math.max(expectedReplicas, known);
+
+        if(added && known == 0 && !replica.equals(localAddress) && replicas.containsValue(localAddress))
+            announce(replicas.size());
+    }
+
+    /**
+     * @param requestId - unique id of the request
+     * @return - true if this replica must reply to the given request
+     */
+    private boolean shouldReply(long requestId) {
+        if(!DESIGNATED_REPLIES)
+            return true;
+        if(draining)
+            return false;
+        // Until this replica knows the whole replica set, it can't tell who is designated
+        if(!replicas.containsValue(localAddress) || replicas.size() < expectedReplicas)
+            return true;
+        return localAddress.equals(designated(requestId, null));
+    }
+
+    /**
+     * @param requestId - unique id of the request
+     * @param excluded - replica that can't be designated, or null
+     * @return - address of the replica designated to reply to the given request, or null if none is known
+     */
+    private SocketAddress designated(long requestId, SocketAddress excluded) {
+        List<SocketAddress> candidates = new ArrayList<>(replicas.values());
+        candidates.remove(excluded);
+        if(candidates.isEmpty())
+            return null;
+
+        int h = (int) ((requestId * 0x9E3779B97F4A7C15L) >>> 32);
+        return candidates.get(Math.floorMod(h, candidates.size()));
+    }
+
+    /**
+     * Streams the state a recovering replica is missing, if this replica is its designated donor.
+     * The state is taken at this point of the total order, the transfer itself runs in the background.
+     * @param requestId - id of the state request
+     * @param joiner - address of the recovering replica
+     * @param fromOpId - first operation the replica is missing
+     * @param logFromOpId - first operation missing from the replica's log
+     */
+    private void startStateTransfer(long requestId, SocketAddress joiner, int fromOpId, int logFromOpId) {
+        // Replicas that haven't announced themselves (e.g. still recovering) are never donors.
+        // One that doesn't know the whole replica set yet may end up as a second donor, which the joiner ignores
+        if(draining || !replicas.containsValue(localAddress))
+            return;
+        if(replicas.size() >= expectedReplicas && !localAddress.equals(designated(requestId, joiner)))
+            return;
+
+        System.out.println("NEW SERVER JOINED. RECEIVED STATE REQUEST");
+        // The state is taken once every operation delivered before the request is done
+        scheduler.drain();
+        da.flush();
+        StateTransfer transfer = new StateTransfer(da, requestId, joiner, fromOpId, logFromOpId,
+                da.getNextOperationId(), replyCache.snapshot(), this::reply);
+        transfers.put(requestId, transfer);
+        transferExecutor.execute(() -> {
+            try {
+                transfer.run();
+            } finally {
+                transfers.remove(requestId);
+            }
+        });
+    }
+
+    /**
+     * Removes the replicas that left the group.
+     * Replies suppressed in favour of a removed replica are sent if this replica is now designated to send them.
+     * Runs under the lifecycle lock, so never along with the handling of a delivered message.
+     */
+    @Override
+    public void onMembershipChange() {
+        synchronized (lifecycle) {
+            if(!stopping)
+                membershipChanged();
+        }
+    }
+
+    private void membershipChanged() {
+        List<SocketAddress> members;
+        try {
+            members = membership.getMembership().getMembershipList();
+        } catch (NotJoinedException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        // If the donor (or, before any chunk arrived, any member) left before the whole state was streamed,
+        // the state is requested again. The operations already logged are not sent again
+        boolean left = view != null && !members.containsAll(view);
+        view = new ArrayList<>(members);
+        if(recover && !discard && !transferComplete && (donor == null ? left : !members.contains(donor))) {
+            System.out.println("STATE DONOR LEFT. REQUESTING STATE AGAIN");
+            msgId++;
+            try {
+                requestState();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        boolean removed = false;
+        Iterator<SocketAddress> it = replicas.values().iterator();
+        while(it.hasNext()) {
+            if(!members.contains(it.next())) {
+                it.remove();
+                expectedReplicas = Math.max(0, expectedReplicas - 1);
+                removed = true;
+            }
+        }
+
+        if(!removed)
+            return;
+
+        Iterator<Map.Entry<Long, SuppressedReply>> sit = suppressed.entrySet().iterator();
+        while(sit.hasNext()) {
+            Map.Entry<Long, SuppressedReply> e = sit.next();
+            SuppressedReply r = e.getValue();
+            if(r.designated != null && replicas.containsValue(r.designated))
+                continue;
+
+            sit.remove();
+            if(shouldReply(e.getKey())) {
+                r.packet.thenAccept(packet -> da.afterCommit(() -> {
+                    try {
+                        reply(packet, r.sender);
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }));
+            }
+        }
+    }
+
+    @Override
+    public void onExcluded() {
+        System.out.println("EXCLUDED FROM THE GROUP");
+    }
+
+    /**
+     * Handles a read sent directly to this replica, outside of the total order.
+     * The read is deferred until every operation up to its watermark has been applied, then runs on the read stage.
+     * @param p - Received packet, holding a Read
+     * @param sender - Address of the packet sender
+     * @throws IOException
+     */
+    private void handleRead(Packet p, SocketAddress sender) throws IOException {
+        Read r = (Read) p.getContent();
+        Invocation i = r.getInvocation();
+
+        if(!i.isReadOnly())
+            return;
+
+        int applied = scheduler.getApplied();
+        if(recover || applied < r.getWatermark()) {
+            synchronized (deferredReads) {
+                deferredReads.add(new DeferredRead(p, sender));
+            }
+            return;
+        }
+
+        Invocation typed = i.isTyped() ? i : Invocation.of(i.getCommand(), i.getArgs());
+        scheduler.reads().execute(() -> {
+            Object attachment = typed.isTyped() ? read(typed) : null;
+            try {
+                reply(p.reply(attachment, applied), sender);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Executes the deferred reads whose watermark has been reached.
+     * Runs on the delivery thread, or on a worker thread once an operation is done
+     */
+    private void handleDeferredReads() {
+        synchronized (deferredReads) {
+            try {
+                while(!deferredReads.isEmpty() && !recover
+                        && deferredReads.peek().getWatermark() <= scheduler.getApplied()) {
+                    DeferredRead d = deferredReads.poll();
+                    handleRead(d.packet, d.sender);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -262,37 +793,92 @@ public class Server implements MessageListener{
         data.multicast(message, service, null);
     }
 
-    private List<BankOperation> getOperationsAfter(int id) {
-        return da.getOperationsAfter(id);
-    }
-
     /**
      * Builds the expected packet unique id.
      * The generated id is based on the expected message id
      * and the unique stub id.
      * @return expected packet unique id
      */
-    public String buildPacketId(){
-        return msgId + "@" + bankId;
+    public long buildPacketId(){
+        return Packet.buildId(bankId, msgId);
     }
 
     @Override
     public Object onMessage(Message message) {
+        synchronized (lifecycle) {
+            if(!stopping)
+                deliver(message);
+        }
+        return null;
+    }
+
+    /**
+     * Handles a message delivered while the server is running
+     * @param message - delivered message
+     */
+    private void deliver(Message message) {
         try {
-            if(recover)
-                handleRecovery(message);
-            else
-                handle(message);
+            Packet p = new Packet(message.getPayload());
+
+            if(p.getContent() instanceof Read) {
+                handleRead(p, message.getSenderAddress());
+            } else if(p.getContent() instanceof StateAck) {
+                StateTransfer transfer = transfers.get(p.getId());
+                if(transfer != null)
+                    transfer.ack(((StateAck) p.getContent()).getSeq());
+            } else if(recover) {
+                handleRecovery(message, p);
+            } else {
+                handle(p, message.getSenderAddress());
+                handleDeferredReads();
+            }
         } catch (IOException | ClassNotFoundException | SQLException e) {
             e.printStackTrace();
         }
+    }
 
-        return null;
+    /**
+     * Reply left to the designated replica, kept in case it leaves the group before sending it
+     */
+    private static class SuppressedReply {
+        final CompletableFuture<Packet> packet;
+        final SocketAddress sender;
+        final SocketAddress designated;
+
+        SuppressedReply(CompletableFuture<Packet> packet, SocketAddress sender, SocketAddress designated) {
+            this.packet = packet;
+            this.sender = sender;
+            this.designated = designated;
+        }
+    }
+
+    /**
+     * Read received before this replica reached its watermark
+     */
+    private static class DeferredRead implements Comparable<DeferredRead> {
+        final Packet packet;
+        final SocketAddress sender;
+
+        DeferredRead(Packet packet, SocketAddress sender) {
+            this.packet = packet;
+            this.sender = sender;
+        }
+
+        int getWatermark() {
+            return ((Read) packet.getContent()).getWatermark();
+        }
+
+        @Override
+        public int compareTo(DeferredRead o) {
+            return Integer.compare(getWatermark(), o.getWatermark());
+        }
     }
 
     public static void main(String[] args){
         try {
-            new Server(args[0], Boolean.valueOf(args[1])).work();
+            Server server = new Server(args[0], Boolean.valueOf(args[1]));
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "shutdown"));
+            server.work();
         } catch (InterruptedException | IOException | SQLException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,167 @@
+package server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor of one stage of request handling (applying ordered operations, or serving reads),
+ * keeping its queue depth and the time tasks spend waiting and running.
+ * Tasks wait in a queue of fixed capacity for the stage's threads. When it is full, the stage's policy
+ * (BACKPRESSURE unless given) decides:
+ * BLOCK makes the delivery thread wait for room, which holds back delivery and, through the group's flow
+ * control, the clients; CALLER_RUNS runs the task on the delivery thread instead.
+ * Stage threads never wait for room (operations completing on them submit the ones waiting for them),
+ * so they always run the task themselves when the queue is full.
+ * With no threads, every task runs on the submitting thread.
+ */
+class Stage implements Executor {
+    /**
+     * Policy when a stage's queue is full
+     */
+    enum Backpressure {
+        BLOCK,
+        CALLER_RUNS
+    }
+
+    private static final Backpressure BACKPRESSURE =
+            Backpressure.valueOf(System.getProperty("bank.server.backpressure", "BLOCK"));
+
+    // True on the threads of every stage
+    private static final ThreadLocal<Boolean> STAGE_THREAD = new ThreadLocal<>();
+
+    private final String name;
+    private final Backpressure backpressure;
+    private final BlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor pool;
+
+    // Stage metrics
+    private final AtomicLong tasks = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+    private final AtomicLong maxRunNanos = new AtomicLong();
+
+    /**
+     * Creates a stage with the configured backpressure policy
+     * @param name - name of the stage and its threads
+     * @param threads - number of threads, 0 to run tasks on the submitting thread
+     * @param capacity - maximum number of tasks waiting for a thread
+     */
+    Stage(String name, int threads, int capacity) {
+        this(name, threads, capacity, BACKPRESSURE, () -> {});
+    }
+
+    /**
+     * Creates a stage
+     * @param name - name of the stage and its threads
+     * @param threads - number of threads, 0 to run tasks on the submitting thread
+     * @param capacity - maximum number of tasks waiting for a thread
+     * @param backpressure - policy when the queue is full
+     * @param init - run by every stage thread before its first task
+     */
+    Stage(String name, int threads, int capacity, Backpressure backpressure, Runnable init) {
+        this.name = name;
+        this.backpressure = backpressure;
+        if(threads <= 0) {
+            queue = null;
+            pool = null;
+            return;
+        }
+
+        queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        AtomicInteger n = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, r -> {
+            Thread t = new Thread(() -> {
+                STAGE_THREAD.set(Boolean.TRUE);
+                init.run();
+                r.run();
+            }, name + "-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }, (r, executor) -> {
+            if(backpressure == Backpressure.BLOCK && STAGE_THREAD.get() == null && !executor.isShutdown()) {
+                try {
+                    queue.put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    r.run();
+                }
+            } else {
+                callerRuns.incrementAndGet();
+                r.run();
+            }
+        });
+        pool.prestartAllCoreThreads();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.incrementAndGet();
+        if(pool == null) {
+            timed(task, System.nanoTime()).run();
+            return;
+        }
+
+        pool.execute(timed(task, System.nanoTime()));
+        int depth = queue.size();
+        if(depth > maxDepth.get())
+            maxDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    /**
+     * Stops the stage threads once the queued tasks are done, and waits for them
+     */
+    void shutdown() {
+        if(pool == null)
+            return;
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return - number of tasks waiting for a thread
+     */
+    int getDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    @Override
+    public String toString() {
+        long n = Math.max(1, tasks.get());
+        return new StringBuilder(name).append(": ")
+                .append(tasks.get()).append(" tasks, ")
+                .append(getDepth()).append(" queued (")
+                .append(maxDepth.get()).append(" max), ")
+                .append(callerRuns.get()).append(" run by caller, ")
+                .append(waitNanos.get() / n / 1000).append("us avg wait (")
+                .append(maxWaitNanos.get() / 1000).append("us max), ")
+                .append(runNanos.get() / n / 1000).append("us avg run (")
+                .append(maxRunNanos.get() / 1000).append("us max)")
+                .toString();
+    }
+
+    private Runnable timed(Runnable task, long submitted) {
+        return () -> {
+            long start = System.nanoTime();
+            record(waitNanos, maxWaitNanos, start - submitted);
+            try {
+                task.run();
+            } finally {
+                record(runNanos, maxRunNanos, System.nanoTime() - start);
+            }
+        };
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long nanos) {
+        total.addAndGet(nanos);
+        if(nanos > max.get())
+            max.accumulateAndGet(nanos, Math::max);
+    }
+}
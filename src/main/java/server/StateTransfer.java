@@ -0,0 +1,177 @@
+package server;
+
+import communication.Packet;
+import communication.StateChunk;
+import data.BalanceStore;
+import data.DataAccess;
+import data.OperationCursor;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Donor side of a state transfer to a recovering replica.
+ * The state is read from the operation log, up to the operation the donor had reached when the
+ * state request was delivered, and streamed point-to-point in chunks:
+ * first a snapshot with the final balance of every account changed since the replica's last operation
+ * (found by scanning the log backwards), then the missing operations themselves, in ascending order.
+ * Both passes read the log through a forward-only cursor into a single reused buffer, so memory
+ * stays constant whatever the size of the gap.
+ * At most WINDOW chunks are sent ahead of the replica's acknowledgements.
+ */
+class StateTransfer implements Runnable {
+    // Maximum number of accounts or operations per chunk
+    private static final int CHUNK_SIZE = Integer.getInteger("bank.state.chunkSize", 1024);
+    // Maximum number of chunks waiting to be acknowledged
+    private static final int WINDOW = Integer.getInteger("bank.state.window", 8);
+    // The transfer is abandoned if the replica takes longer than this to acknowledge a chunk
+    private static final long ACK_TIMEOUT = Long.getLong("bank.state.ackTimeoutMillis", 30000);
+
+    /**
+     * Sends a packet point-to-point
+     */
+    interface Sender {
+        void send(Packet p, SocketAddress destination) throws IOException;
+    }
+
+    private final DataAccess da;
+    private final long requestId;
+    private final SocketAddress joiner;
+    private final int fromOpId;
+    private final int logFromOpId;
+    private final int toOpId;
+    private final ReplyCache.Snapshot replies;
+    private final Sender sender;
+
+    private final Semaphore window = new Semaphore(WINDOW);
+    private int seq;
+
+    // Operations read from the log
+    private final int[] rows = new int[CHUNK_SIZE * OperationCursor.WIDTH];
+
+    // Snapshot entries not sent yet
+    private final int[] accounts = new int[CHUNK_SIZE];
+    private final int[] balances = new int[CHUNK_SIZE];
+    private int pending;
+
+    /**
+     * Creates a state transfer
+     * @param da - database access layer of the donor
+     * @param requestId - id of the state request, used as the id of every chunk
+     * @param joiner - address of the recovering replica
+     * @param fromOpId - first operation the replica is missing
+     * @param logFromOpId - first operation missing from the replica's log (greater than fromOpId when resuming)
+     * @param toOpId - next operation id of the donor when the request was delivered
+     * @param replies - reply cache of the donor when the request was delivered, sent in the last chunk
+     * @param sender - used to send the chunks
+     */
+    StateTransfer(DataAccess da, long requestId, SocketAddress joiner, int fromOpId, int logFromOpId, int toOpId,
+                  ReplyCache.Snapshot replies, Sender sender) {
+        this.da = da;
+        this.requestId = requestId;
+        this.joiner = joiner;
+        this.fromOpId = fromOpId;
+        this.logFromOpId = logFromOpId;
+        this.toOpId = toOpId;
+        this.replies = replies;
+        this.sender = sender;
+    }
+
+    /**
+     * Records the acknowledgement of a chunk, allowing another one to be sent
+     * @param seq - sequence number of the acknowledged chunk
+     */
+    void ack(int seq) {
+        window.release();
+    }
+
+    @Override
+    public void run() {
+        try {
+            sendSnapshot();
+            sendLog();
+            System.out.println("STATE TRANSFER COMPLETE: " + seq + " CHUNKS SENT");
+        } catch (IOException | InterruptedException | SQLException e) {
+            System.out.println("STATE TRANSFER ABORTED");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends the final balance of every account changed in [fromOpId, toOpId).
+     * The log is scanned from the newest operation, so the first one found for an account holds its final balance.
+     */
+    private void sendSnapshot() throws IOException, InterruptedException, SQLException {
+        BalanceStore seen = new BalanceStore(CHUNK_SIZE);
+        try (OperationCursor cursor = da.openOperations(fromOpId, toOpId, true, CHUNK_SIZE)) {
+            int n;
+            while((n = cursor.next(rows, CHUNK_SIZE)) > 0) {
+                for(int o = 0; o < n * OperationCursor.WIDTH; o += OperationCursor.WIDTH) {
+                    int type = rows[o + OperationCursor.TYPE];
+                    if(type == OperationCursor.CREATE) {
+                        addToSnapshot(seen, rows[o + OperationCursor.FROM], 0);
+                    } else {
+                        addToSnapshot(seen, rows[o + OperationCursor.FROM], rows[o + OperationCursor.FROM_BALANCE]);
+                        if(type == OperationCursor.TRANSFER)
+                            addToSnapshot(seen, rows[o + OperationCursor.TO], rows[o + OperationCursor.TO_BALANCE]);
+                    }
+                }
+            }
+        }
+
+        if(pending > 0)
+            send(new StateChunk(seq, Arrays.copyOf(accounts, pending), Arrays.copyOf(balances, pending)));
+    }
+
+    /**
+     * Adds an account to the snapshot, unless a newer balance was already added, sending full chunks
+     * @param seen - accounts already in the snapshot
+     * @param account - account id
+     * @param balance - account balance
+     */
+    private void addToSnapshot(BalanceStore seen, int account, int balance) throws IOException, InterruptedException {
+        if(seen.contains(account))
+            return;
+
+        seen.put(account, balance);
+        accounts[pending] = account;
+        balances[pending++] = balance;
+        if(pending == CHUNK_SIZE) {
+            send(new StateChunk(seq, accounts.clone(), balances.clone()));
+            pending = 0;
+        }
+    }
+
+    /**
+     * Sends the operations in [logFromOpId, toOpId), in ascending order. The last chunk is flagged as such.
+     */
+    private void sendLog() throws IOException, InterruptedException, SQLException {
+        try (OperationCursor cursor = da.openOperations(logFromOpId, toOpId, false, CHUNK_SIZE)) {
+            int n;
+            do {
+                n = cursor.next(rows, CHUNK_SIZE);
+                StateChunk chunk = new StateChunk(seq, Arrays.copyOf(rows, n * OperationCursor.WIDTH), n < CHUNK_SIZE, toOpId);
+                if(chunk.isLast())
+                    chunk.setReplies(replies.requests, replies.senders, replies.replies, replies.clocks);
+                send(chunk);
+            } while(n == CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * Sends a chunk once the window allows it
+     * @param chunk - chunk to be sent
+     * @throws IOException - if the chunk can't be sent or the replica stopped acknowledging
+     */
+    private void send(StateChunk chunk) throws IOException, InterruptedException {
+        if(!window.tryAcquire(ACK_TIMEOUT, TimeUnit.MILLISECONDS))
+            throw new IOException("State transfer timed out waiting for chunk acknowledgements");
+
+        sender.send(new Packet(requestId, chunk), joiner);
+        seq++;
+    }
+}
@@ -0,0 +1,193 @@
+package communication;
+
+import bank.History;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * Compares the binary packet format against Java serialization:
+ * encoded size and encode/decode time of typical requests and replies.
+ * Also checks that every packet survives a round trip in both formats, and that requests of the previous
+ * version are decoded and answered in its form.
+ */
+public class PacketCodecBenchmark {
+    private static final int WARMUP = 50000;
+    private static final int ITERATIONS = 200000;
+
+    // Transfer request as serialized by the previous version: Packet("3@<VMID>", Invocation("transfer", {"1234", "4321", 100}))
+    private static final String LEGACY_REQUEST =
+            "aced000573720014636f6d6d756e69636174696f6e2e5061636b65747600ae3121a4017c0200024c0007636f6e74656e7474" +
+            "00124c6a6176612f6c616e672f4f626a6563743b4c000269647400124c6a6176612f6c616e672f537472696e673b78707372" +
+            "0018636f6d6d756e69636174696f6e2e496e766f636174696f6ee2d79605ed2edbba0200025b0004617267737400135b4c6a" +
+            "6176612f6c616e672f4f626a6563743b4c0007636f6d6d616e6471007e00027870757200135b4c6a6176612e6c616e672e4f" +
+            "626a6563743b90ce589f1073296c0200007870000000037400043132333474000434333231737200116a6176612e6c616e67" +
+            "2e496e746567657212e2a0a4f781873802000149000576616c7565787200106a6176612e6c616e672e4e756d62657286ac95" +
+            "1d0b94e08b0200007870000000647400087472616e7366657274001c334036643263346438613a3135343333663163326331" +
+            "3a2d38303030";
+
+    private static Packet[] samples() {
+        long id = Packet.buildId(0x5eed1234, 42);
+
+        // Log rows as read by data.OperationCursor: type, id, amount, from, to, from balance, to balance
+        int[] rows = new int[21 * 7];
+        for(int i = 0; i < 20; i += 2) {
+            System.arraycopy(new int[] {1, 100 + i, 25, 17, 0, 1000 + 25 * i, 0}, 0, rows, i * 7, 7);
+            System.arraycopy(new int[] {2, 101 + i, 10, 17, 23, 500 - i, 500 + i}, 0, rows, (i + 1) * 7, 7);
+        }
+        System.arraycopy(new int[] {3, 300, 0, 31, 0, 0, 0}, 0, rows, 20 * 7, 7);
+
+        // Last 10 operations of account 17, newest first
+        int[] latest = new int[10 * History.WIDTH];
+        long[] timestamps = new long[10];
+        System.arraycopy(rows, 0, latest, 0, latest.length);
+        for(int i = 0; i < 10; i++)
+            timestamps[i] = 1461000000000L - 1500 * i;
+        History history = new History(17, latest, timestamps);
+
+        // Last log chunk, with the donor's reply cache
+        StateChunk last = new StateChunk(1, rows, true, 4312);
+        SocketAddress client = InetSocketAddress.createUnresolved("10.0.0.7", 7800);
+        SocketAddress other = InetSocketAddress.createUnresolved("10.0.0.8", 7800);
+        last.setReplies(new long[] {id, id + 1, id}, new SocketAddress[] {client, client, other},
+                new Object[] {"31", true, false}, new int[] {4300, 4300, 4310});
+
+        return new Packet[] {
+                new Packet(id, new Invocation(Invocation.CREATE, new Object[0])),
+                new Packet(id, new Invocation(Invocation.BALANCE, new Object[] {"1234"})),
+                new Packet(id, new Invocation(Invocation.MOVEMENT, new Object[] {"1234", -50})),
+                new Packet(id, new Invocation(Invocation.TRANSFER, new Object[] {"1234", "4321", 100})),
+                new Packet(id, Invocation.of(Invocation.MOVEMENT, "1234", -50)),
+                new Packet(id, Invocation.of(Invocation.TRANSFER, "1234", "4321", 100)),
+                new Packet(id, "1234"),
+                new Packet(id, 1500),
+                new Packet(id, true),
+                new Packet(id, new Batch(new long[] {id, id + 1, id + 2}, new Object[] {
+                        new Invocation(Invocation.MOVEMENT, new Object[] {"1234", -50}),
+                        new Invocation(Invocation.TRANSFER, new Object[] {"1234", "4321", 100}),
+                        new Invocation(Invocation.BALANCE, new Object[] {"4321"})})),
+                new Packet(id, new Batch(new long[] {id, id + 1, id + 2}, new Object[] {true, false, 1550})),
+                new Packet(id, new StateChunk(0, new int[] {17, 23, 31}, new int[] {1225, 491, 0})),
+                new Packet(id, last),
+                new Packet(id, history.toString()),
+                new Packet(id, history)
+        };
+    }
+
+    private static String describe(Packet p) {
+        Object c = p.getContent();
+        if(c instanceof Invocation)
+            return ((Invocation) c).getCommand() + (((Invocation) c).isTyped() ? " typed" : "") + " request";
+        if(c instanceof Batch)
+            return "batched " + (((Batch) c).isRequest() ? "request" : "reply") + " (" + ((Batch) c).size() + " items)";
+        if(c instanceof StateChunk)
+            return "state chunk (" + ((StateChunk) c).getAccounts().length + " accounts, "
+                    + ((StateChunk) c).getOperations().length / 7 + " ops)";
+        if(c instanceof History)
+            return "history reply (" + ((History) c).size() + " ops)";
+        if(c instanceof String && ((String) c).startsWith("Id:"))
+            return "latest reply (" + ((String) c).split("\n").length + " ops)";
+        return c.getClass().getSimpleName() + " reply";
+    }
+
+    private static void check(Packet original, Packet decoded, boolean binary) {
+        if(original.getId() != decoded.getId())
+            throw new AssertionError("Id mismatch");
+
+        Object a = original.getContent(), b = decoded.getContent();
+        if(a instanceof Invocation) {
+            Invocation ia = (Invocation) a, ib = (Invocation) b;
+            // Java serialization only keeps the generic form
+            if(!ia.getCommand().equals(ib.getCommand()) || (binary && ia.isTyped() != ib.isTyped())
+                    || !java.util.Arrays.equals(ia.getArgs(), ib.getArgs()))
+                throw new AssertionError("Invocation mismatch");
+        } else if(a instanceof Batch) {
+            Batch ba = (Batch) a, bb = (Batch) b;
+            if(ba.size() != bb.size() || ba.isRequest() != bb.isRequest() || ba.getId(ba.size() - 1) != bb.getId(bb.size() - 1))
+                throw new AssertionError("Batch mismatch");
+        } else if(a instanceof StateChunk) {
+            StateChunk ca = (StateChunk) a, cb = (StateChunk) b;
+            if(ca.getSeq() != cb.getSeq() || ca.isLast() != cb.isLast() || ca.getNext() != cb.getNext()
+                    || !java.util.Arrays.equals(ca.getBalances(), cb.getBalances())
+                    || !java.util.Arrays.equals(ca.getOperations(), cb.getOperations())
+                    || !java.util.Arrays.equals(ca.getRequests(), cb.getRequests())
+                    || !java.util.Arrays.equals(ca.getSenders(), cb.getSenders())
+                    || !java.util.Arrays.equals(ca.getReplies(), cb.getReplies())
+                    || !java.util.Arrays.equals(ca.getClocks(), cb.getClocks()))
+                throw new AssertionError("State chunk mismatch");
+        } else if(a instanceof History) {
+            History ha = (History) a, hb = (History) b;
+            if(ha.getAccount() != hb.getAccount() || !java.util.Arrays.equals(ha.getRows(), hb.getRows())
+                    || !java.util.Arrays.equals(ha.getTimestamps(), hb.getTimestamps()))
+                throw new AssertionError("History mismatch");
+        } else if(!a.equals(b)) {
+            throw new AssertionError("Content mismatch: " + a + " / " + b);
+        }
+    }
+
+    private static long encodeNanos(Packet p, boolean binary, int n) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < n; i++)
+            sink += (binary ? PacketCodec.encode(p) : p.toJavaBytes()).length;
+        long elapsed = System.nanoTime() - start;
+        if(sink == 0) System.out.print("");
+        return elapsed / n;
+    }
+
+    private static long decodeNanos(byte[] payload, int n) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < n; i++)
+            sink += new Packet(payload).getId();
+        long elapsed = System.nanoTime() - start;
+        if(sink == 0) System.out.print("");
+        return elapsed / n;
+    }
+
+    private static void checkLegacy() {
+        byte[] payload = new byte[LEGACY_REQUEST.length() / 2];
+        for(int i = 0; i < payload.length; i++)
+            payload[i] = (byte) Integer.parseInt(LEGACY_REQUEST.substring(2 * i, 2 * i + 2), 16);
+
+        Packet request = new Packet(payload);
+        Invocation i = (Invocation) request.getContent();
+        if(request.getId() != Packet.parseId("3@6d2c4d8a:15433f1c2c1:-8000") || i.getOpcode() != Invocation.OP_TRANSFER
+                || !java.util.Arrays.equals(i.getArgs(), new Object[] {"1234", "4321", 100}))
+            throw new AssertionError("Legacy request mismatch");
+
+        // Answered in the previous version's form, with the same id
+        byte[] reply = request.reply(true, 42).getBytes();
+        Packet decoded = new Packet(reply);
+        if(PacketCodec.isBinary(reply) || decoded.getId() != request.getId() || !Boolean.TRUE.equals(decoded.getContent()))
+            throw new AssertionError("Legacy reply mismatch");
+        System.out.println("legacy request: " + payload.length + "B, answered in the same form");
+    }
+
+    public static void main(String[] args) {
+        checkLegacy();
+        Packet[] samples = samples();
+
+        for(Packet p : samples) {
+            byte[] java = p.toJavaBytes();
+            byte[] binary = PacketCodec.encode(p);
+            check(p, new Packet(java), false);
+            check(p, new Packet(binary), true);
+
+            encodeNanos(p, false, WARMUP);
+            encodeNanos(p, true, WARMUP);
+            decodeNanos(java, WARMUP);
+            decodeNanos(binary, WARMUP);
+
+            int n = ITERATIONS;
+            System.out.println(new StringBuilder()
+                    .append(describe(p)).append(":")
+                    .append("\n\tsize:   java ").append(java.length).append("B, binary ").append(binary.length).append("B")
+                    .append("\n\tencode: java ").append(encodeNanos(p, false, n)).append("ns, binary ")
+                    .append(encodeNanos(p, true, n)).append("ns")
+                    .append("\n\tdecode: java ").append(decodeNanos(java, n)).append("ns, binary ")
+                    .append(decodeNanos(binary, n)).append("ns")
+                    .toString());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package data;
+
+import bank.Account;
+
+/**
+ * Compares the heap used to keep account balances in a BalanceStore
+ * against keeping them as Account objects in a CacheManager.
+ * Run with a large heap, e.g. -Xmx4g
+ */
+public class BalanceStoreFootprint {
+    private static final int[] SIZES = {1000000, 10000000};
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static long measureStore(int accounts) {
+        long before = usedHeap();
+        BalanceStore store = new BalanceStore(accounts);
+        for(int i = 1; i <= accounts; i++)
+            store.put(i, i);
+        long used = usedHeap() - before;
+
+        System.out.println("BalanceStore (" + store.footprint() / (1024 * 1024) + "MB reported), size " + store.size());
+        return used;
+    }
+
+    private static long measureCache(int accounts) {
+        long before = usedHeap();
+        CacheManager<Account> cache = new CacheManager<>(accounts);
+        for(int i = 1; i <= accounts; i++)
+            cache.add(new Account(i, i));
+        long used = usedHeap() - before;
+
+        System.out.println("CacheManager<Account>, size " + cache.size());
+        return used;
+    }
+
+    public static void main(String[] args) {
+        for(int accounts : SIZES) {
+            long store = measureStore(accounts);
+            long cache = measureCache(accounts);
+
+            System.out.println(new StringBuilder()
+                    .append(accounts).append(" accounts:")
+                    .append("\n\tBalanceStore: ").append(store / (1024 * 1024)).append("MB (")
+                    .append(store / accounts).append(" bytes/account)")
+                    .append("\n\tCacheManager: ").append(cache / (1024 * 1024)).append("MB (")
+                    .append(cache / accounts).append(" bytes/account)")
+                    .toString());
+        }
+    }
+}
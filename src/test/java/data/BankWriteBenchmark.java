@@ -0,0 +1,67 @@
+package data;
+
+import java.sql.SQLException;
+
+/**
+ * Compares the read-then-write path of movements and transfers (balance check, then log insert and
+ * one auto-committed update per account) against the fused single-transaction path of applyMovement
+ * and applyTransfer. Reports, per operation, the connections borrowed, the statements executed and the time taken.
+ * In the read-then-write path every statement is auto-committed, so each one also costs a commit (a Derby log
+ * force), while the fused path commits once per operation.
+ */
+public class BankWriteBenchmark {
+    private static final int ACCOUNTS = 100;
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 10000;
+
+    private interface Write {
+        void run(DataAccess da, int i);
+    }
+
+    public static void main(String[] args) throws SQLException {
+        DataAccess da = new DataAccess();
+        da.initEDBConnection("benchmark");
+
+        int first = da.makeNewAccount(1000000);
+        for(int i = 1; i < ACCOUNTS; i++)
+            da.makeNewAccount(1000000);
+
+        run(da, "movement, read then write", (d, i) -> {
+            int id = first + i % ACCOUNTS;
+            int balance = d.balanceOf(id);
+            if(balance != DataAccess.NO_ACCOUNT && balance - 1 >= 0)
+                d.makeMovement(-1, id, balance - 1);
+        });
+        run(da, "movement, fused", (d, i) -> d.applyMovement(DataAccess.NEXT_ID, -1, first + i % ACCOUNTS));
+
+        run(da, "transfer, read then write", (d, i) -> {
+            int from = first + i % ACCOUNTS, to = first + (i + 1) % ACCOUNTS;
+            int balanceFrom = d.balanceOf(from);
+            int balanceTo = d.balanceOf(to);
+            if(balanceFrom != DataAccess.NO_ACCOUNT && balanceTo != DataAccess.NO_ACCOUNT && balanceFrom - 1 >= 0)
+                d.makeTransfer(1, from, to, balanceFrom - 1, balanceTo + 1);
+        });
+        run(da, "transfer, fused", (d, i) ->
+                d.applyTransfer(DataAccess.NEXT_ID, 1, first + i % ACCOUNTS, first + (i + 1) % ACCOUNTS));
+
+        System.out.println(da.getPoolMetrics());
+    }
+
+    private static void run(DataAccess da, String name, Write write) {
+        for(int i = 0; i < WARMUP; i++)
+            write.run(da, i);
+
+        ConnectionPool pool = da.getPool();
+        long borrows = pool.getBorrows();
+        long statements = pool.getStatements();
+        long start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++)
+            write.run(da, i);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(name + ":");
+        System.out.println("\tborrows:    " + String.format("%.2f", (pool.getBorrows() - borrows) / (double) ITERATIONS) + "/op");
+        System.out.println("\tstatements: " + String.format("%.2f", (pool.getStatements() - statements) / (double) ITERATIONS) + "/op");
+        System.out.println("\ttime:       " + elapsed / ITERATIONS / 1000 + "us/op");
+    }
+}
@@ -35,5 +35,10 @@ public class CacheManagerTest implements Cacheable {
         Assert.assertNotNull(cache.get(1));     // 1 was accessed, cache was reordered
         Assert.assertNull(cache.get(2));        // 2 should've been removed instead
         Assert.assertNotNull(cache.get(20));
+
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertEquals(20, cache.size());
     }
 }
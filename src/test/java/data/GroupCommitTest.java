@@ -0,0 +1,162 @@
+package data;
+
+import junit.framework.Assert;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that group commit only acknowledges committed writes: a batch whose writes all commit runs its
+ * actions once flushed, while a batch holding a write that can't be committed is retried row by row,
+ * commits the other writes, calls the failure handler once and never runs its actions or any later one.
+ * Runs against an in-memory stand-in of the JDBC connection, which rejects the rows holding BAD.
+ */
+public class GroupCommitTest {
+    private static final int BAD = -7;
+
+    // Rows of the transaction in progress and of the committed ones, as "statement: parameters"
+    private static final List<String> pending = new ArrayList<>();
+    private static final List<String> committed = new ArrayList<>();
+
+    private static Object defaultValue(Class<?> type) {
+        if(type == boolean.class) return false;
+        if(type == int.class) return 0;
+        if(type == long.class) return 0L;
+        return null;
+    }
+
+    private static Object object(Object proxy, Method m, Object[] args) {
+        switch(m.getName()) {
+            case "hashCode": return System.identityHashCode(proxy);
+            case "equals": return proxy == args[0];
+            default: return proxy.getClass().getInterfaces()[0].getSimpleName();
+        }
+    }
+
+    private static PreparedStatement statement(String sql) {
+        List<int[]> batch = new ArrayList<>();
+        int[][] row = {new int[9]};
+        return (PreparedStatement) Proxy.newProxyInstance(GroupCommitTest.class.getClassLoader(),
+                new Class<?>[] {PreparedStatement.class}, (proxy, m, args) -> {
+                    if(m.getDeclaringClass() == Object.class)
+                        return object(proxy, m, args);
+                    switch(m.getName()) {
+                        case "setInt":
+                            row[0][(Integer) args[0]] = (Integer) args[1];
+                            break;
+                        case "addBatch":
+                            batch.add(row[0]);
+                            row[0] = new int[9];
+                            break;
+                        case "clearBatch":
+                            batch.clear();
+                            break;
+                        case "executeBatch":
+                            List<String> rows = new ArrayList<>();
+                            for(int[] r : batch) {
+                                for(int v : r)
+                                    if(v == BAD)
+                                        throw new BatchUpdateException();
+                                rows.add(sql.substring(0, 20) + ": " + java.util.Arrays.toString(r));
+                            }
+                            batch.clear();
+                            pending.addAll(rows);
+                            return new int[rows.size()];
+                    }
+                    return defaultValue(m.getReturnType());
+                });
+    }
+
+    private static Connection connection() {
+        return (Connection) Proxy.newProxyInstance(GroupCommitTest.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, (proxy, m, args) -> {
+                    if(m.getDeclaringClass() == Object.class)
+                        return object(proxy, m, args);
+                    switch(m.getName()) {
+                        case "prepareStatement":
+                            return statement((String) args[0]);
+                        case "commit":
+                            committed.addAll(pending);
+                            pending.clear();
+                            break;
+                        case "rollback":
+                            pending.clear();
+                            break;
+                    }
+                    return defaultValue(m.getReturnType());
+                });
+    }
+
+    private static GroupCommit groupCommit(Runnable onFailure) throws Exception {
+        DataSource source = (DataSource) Proxy.newProxyInstance(GroupCommitTest.class.getClassLoader(),
+                new Class<?>[] {DataSource.class}, (proxy, m, args) -> {
+                    if(m.getDeclaringClass() == Object.class)
+                        return object(proxy, m, args);
+                    return m.getName().equals("getConnection") ? connection() : defaultValue(m.getReturnType());
+                });
+        // Flushed by hand: the batch is never full and the delay timer never fires
+        return new GroupCommit(new ConnectionPool(source, 1), 1024, 60000000L, false, onFailure);
+    }
+
+    private static void committedBatch() throws Exception {
+        committed.clear();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger acked = new AtomicInteger();
+        GroupCommit gc = groupCommit(failures::incrementAndGet);
+
+        gc.logMovement(1, 10, 17, 110);
+        gc.updateBalance(17, 110);
+        gc.afterCommit(acked::incrementAndGet);
+        Assert.assertEquals(0, acked.get());
+
+        gc.flush();
+        Assert.assertEquals(1, acked.get());
+        Assert.assertEquals(2, committed.size());
+        Assert.assertEquals(0, failures.get());
+        Assert.assertFalse(gc.hasFailed());
+        gc.close();
+    }
+
+    private static void failedBatch() throws Exception {
+        committed.clear();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger acked = new AtomicInteger();
+        GroupCommit gc = groupCommit(failures::incrementAndGet);
+
+        gc.logMovement(1, 10, 17, 110);
+        gc.afterCommit(acked::incrementAndGet);
+        gc.logMovement(2, 10, BAD, 110);
+        gc.afterCommit(acked::incrementAndGet);
+        gc.logMovement(3, 10, 23, 50);
+        gc.afterCommit(acked::incrementAndGet);
+
+        gc.flush();
+        Assert.assertTrue(gc.hasFailed());
+        Assert.assertEquals(1, failures.get());
+        Assert.assertEquals(0, acked.get());
+        // The other writes of the batch are still committed, one by one
+        Assert.assertEquals(2, committed.size());
+
+        // Nothing is acknowledged once a write failed
+        gc.logMovement(4, 10, 17, 120);
+        gc.afterCommit(acked::incrementAndGet);
+        gc.flush();
+        gc.afterCommit(acked::incrementAndGet);
+        Assert.assertEquals(0, acked.get());
+        Assert.assertEquals(1, failures.get());
+        gc.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        committedBatch();
+        failedBatch();
+        System.out.println("Group commit: OK");
+    }
+}
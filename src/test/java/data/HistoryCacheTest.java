@@ -0,0 +1,122 @@
+package data;
+
+import junit.framework.Assert;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Checks that the history buffers never hold an operation twice, recording operations while other threads
+ * fill the buffer from the "database" as DataAccess does: writers commit an operation before recording it,
+ * loaders read the committed operations and only cache them if nothing was recorded meanwhile
+ */
+public class HistoryCacheTest {
+    private static final int ACCOUNT = 17;
+    private static final int OPERATIONS = 200000;
+    private static final int DEPTH = HistoryCache.DEPTH;
+
+    private static int[] movement(int opId) {
+        int[] row = new int[OperationCursor.WIDTH];
+        row[OperationCursor.TYPE] = OperationCursor.MOVEMENT;
+        row[OperationCursor.ID] = opId;
+        row[OperationCursor.AMOUNT] = 1;
+        row[OperationCursor.FROM] = ACCOUNT;
+        row[OperationCursor.FROM_BALANCE] = opId;
+        return row;
+    }
+
+    // Last DEPTH operations up to last, newest first, as read by loadLastAccountOperations
+    private static int read(int last, int[] rows, long[] timestamps) {
+        int count = Math.min(DEPTH, last);
+        for(int i = 0; i < count; i++) {
+            System.arraycopy(movement(last - i), 0, rows, i * OperationCursor.WIDTH, OperationCursor.WIDTH);
+            timestamps[i] = last - i;
+        }
+        return count;
+    }
+
+    // Ids must be strictly decreasing and, if complete, consecutive down to the newest one
+    private static void check(int[] rows, int count, int newest) {
+        for(int i = 0; i < count; i++) {
+            int id = rows[i * OperationCursor.WIDTH + OperationCursor.ID];
+            if(i > 0 && id >= rows[(i - 1) * OperationCursor.WIDTH + OperationCursor.ID])
+                throw new AssertionError("Operation " + id + " out of order or held twice");
+            if(newest > 0)
+                Assert.assertEquals(newest - i, id);
+        }
+    }
+
+    private static void duplicate() {
+        HistoryCache history = new HistoryCache();
+        int[] rows = new int[DEPTH * OperationCursor.WIDTH];
+        long[] timestamps = new long[DEPTH];
+
+        // Operation 3 is committed and read before being recorded
+        history.fill(ACCOUNT, rows, timestamps, read(3, rows, timestamps), true);
+        history.record(movement(3), 0, 3);
+        history.record(movement(4), 0, 4);
+
+        int count = history.latest(ACCOUNT, DEPTH, rows, timestamps);
+        Assert.assertEquals(4, count);
+        check(rows, count, 4);
+    }
+
+    private static void concurrent() throws InterruptedException {
+        HistoryCache history = new HistoryCache();
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        AtomicLong recorded = new AtomicLong();
+        AtomicInteger committed = new AtomicInteger();
+        history.create(ACCOUNT, movement(0), 0, 0);
+
+        Thread writer = new Thread(() -> {
+            for(int i = 1; i <= OPERATIONS; i++) {
+                committed.set(i);
+                lock.readLock().lock();
+                try {
+                    recorded.incrementAndGet();
+                    history.record(movement(i), 0, i);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        });
+
+        Thread loader = new Thread(() -> {
+            int[] rows = new int[DEPTH * OperationCursor.WIDTH];
+            long[] timestamps = new long[DEPTH];
+            while(committed.get() < OPERATIONS) {
+                long version = recorded.get();
+                int count = read(committed.get(), rows, timestamps);
+                lock.writeLock().lock();
+                try {
+                    if(count > 0 && recorded.get() == version)
+                        history.fill(ACCOUNT, rows, timestamps, count, count < DEPTH);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        });
+
+        writer.start();
+        loader.start();
+
+        int[] rows = new int[DEPTH * OperationCursor.WIDTH];
+        long[] timestamps = new long[DEPTH];
+        while(writer.isAlive())
+            check(rows, Math.max(0, history.latest(ACCOUNT, DEPTH, rows, timestamps)), 0);
+
+        writer.join();
+        loader.join();
+
+        int count = history.latest(ACCOUNT, DEPTH, rows, timestamps);
+        Assert.assertEquals(DEPTH, count);
+        check(rows, count, OPERATIONS);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        duplicate();
+        concurrent();
+        System.out.println("History cache: OK");
+    }
+}
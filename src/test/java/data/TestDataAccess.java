@@ -34,6 +34,9 @@ public class TestDataAccess {
 
             System.out.println(da.getAccountsInfo());
             System.out.println(da.getOperationLogs());
+            System.out.println(da.getPoolMetrics());
+            System.out.println(da.getCacheMetrics());
+            System.out.println(da.getHistoryMetrics());
             //System.out.println(da.getLastClientOperations(1, 5));
             //System.out.println(da.getLastClientOperations("Paulo", 2));
 
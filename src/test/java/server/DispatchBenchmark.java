@@ -0,0 +1,108 @@
+package server;
+
+import communication.Invocation;
+import communication.Packet;
+
+/**
+ * Measures the cost of getting from a received payload to the bank call, per operation type:
+ * decoding the packet and dispatching the invocation, with a bank that does nothing.
+ * Compares the generic form (string command switch, boxed arguments and string account ids parsed on
+ * every call) against the typed form (opcode switch on primitive arguments).
+ */
+public class DispatchBenchmark {
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 2000000;
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        long id = Packet.buildId(0x5eed1234, 42);
+        Object[][] samples = {
+                {Invocation.BALANCE, new Object[] {"1234"}},
+                {Invocation.MOVEMENT, new Object[] {"1234", -50}},
+                {Invocation.TRANSFER, new Object[] {"1234", "4321", 100}},
+                {Invocation.HISTORY, new Object[] {"1234", 10}}
+        };
+
+        for(Object[] sample : samples) {
+            String command = (String) sample[0];
+            Object[] arguments = (Object[]) sample[1];
+            byte[] generic = new Packet(id, new Invocation(command, arguments)).getBytes();
+            byte[] typed = new Packet(id, Invocation.of(command, arguments)).getBytes();
+
+            System.out.println(command + ":");
+            System.out.println("\tgeneric: " + run(generic, false) + "ns/op");
+            System.out.println("\ttyped:   " + run(typed, true) + "ns/op");
+        }
+        if(sink == 42) System.out.print("");
+    }
+
+    private static long run(byte[] payload, boolean typed) {
+        for(int i = 0; i < WARMUP; i++)
+            dispatch(payload, typed);
+
+        long start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++)
+            dispatch(payload, typed);
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static void dispatch(byte[] payload, boolean typed) {
+        Invocation i = (Invocation) new Packet(payload).getContent();
+        if(typed)
+            dispatchTyped(i);
+        else
+            dispatchGeneric(i.getCommand(), i.getArgs());
+    }
+
+    // As Server dispatched before invocations were typed
+    private static void dispatchGeneric(String command, Object[] args) {
+        switch(command) {
+            case Invocation.BALANCE:
+                balance(Integer.parseInt((String) args[0]));
+                break;
+            case Invocation.MOVEMENT:
+                movement(Integer.parseInt((String) args[0]), (int) args[1]);
+                break;
+            case Invocation.TRANSFER:
+                transfer(Integer.parseInt((String) args[0]), Integer.parseInt((String) args[1]), (int) args[2]);
+                break;
+            case Invocation.HISTORY:
+                history(Integer.parseInt((String) args[0]), (int) args[1]);
+                break;
+        }
+    }
+
+    private static void dispatchTyped(Invocation i) {
+        switch(i.getOpcode()) {
+            case Invocation.OP_BALANCE:
+                balance(i.getAccount());
+                break;
+            case Invocation.OP_MOVEMENT:
+                movement(i.getAccount(), i.getAmount());
+                break;
+            case Invocation.OP_TRANSFER:
+                transfer(i.getAccount(), i.getTarget(), i.getAmount());
+                break;
+            case Invocation.OP_HISTORY:
+                history(i.getAccount(), i.getAmount());
+                break;
+        }
+    }
+
+    private static void balance(int account) {
+        sink += account;
+    }
+
+    private static void movement(int account, int amount) {
+        sink += account + amount;
+    }
+
+    private static void transfer(int from, int to, int amount) {
+        sink += from + to + amount;
+    }
+
+    private static void history(int account, int n) {
+        sink += account + n;
+    }
+}
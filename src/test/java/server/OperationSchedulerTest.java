@@ -0,0 +1,111 @@
+package server;
+
+import data.DataAccess;
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks the concurrent apply mode: every account sees its operations in delivery order, operations on
+ * disjoint accounts don't wait for each other, and getApplied stays below every operation still running.
+ * Operations work on in-memory balances, so no database is needed.
+ */
+public class OperationSchedulerTest {
+    private static final int THREADS = 4;
+    private static final int ACCOUNTS = 64;
+    private static final int OPERATIONS = 100000;
+
+    private static void ordering() {
+        DataAccess da = new DataAccess();
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+        OperationScheduler scheduler = new OperationScheduler(da, workers);
+
+        int[] balances = new int[ACCOUNTS];
+        int[] expected = new int[ACCOUNTS];
+        List<List<Integer>> applied = new ArrayList<>();
+        for(int a = 0; a < ACCOUNTS; a++)
+            applied.add(new ArrayList<>());
+
+        Random random = new Random(42);
+        List<CompletableFuture<Object>> results = new ArrayList<>();
+        for(int i = 0; i < OPERATIONS; i++) {
+            int from = random.nextInt(ACCOUNTS);
+            int to = random.nextInt(ACCOUNTS);
+            int amount = random.nextInt(100);
+            int opId = scheduler.reserveOperationId();
+            int[] accounts = random.nextBoolean() ? new int[] {from} : new int[] {from, to};
+
+            for(int j = 0; j < accounts.length; j++)
+                expected[accounts[j]] += j == 0 ? amount : -amount;
+            results.add(scheduler.submit(accounts, opId, () -> {
+                for(int j = 0; j < accounts.length; j++) {
+                    balances[accounts[j]] += j == 0 ? amount : -amount;
+                    if(j == 0 || accounts[j] != accounts[0])
+                        applied.get(accounts[j]).add(opId);
+                }
+                return true;
+            }));
+        }
+
+        scheduler.drain();
+        for(CompletableFuture<Object> f : results)
+            Assert.assertEquals(Boolean.TRUE, f.join());
+
+        Assert.assertEquals(da.getNextOperationId(), scheduler.getApplied());
+        for(int a = 0; a < ACCOUNTS; a++) {
+            Assert.assertEquals(expected[a], balances[a]);
+            List<Integer> ids = applied.get(a);
+            for(int i = 1; i < ids.size(); i++)
+                if(ids.get(i) <= ids.get(i - 1))
+                    throw new AssertionError("Account " + a + " applied " + ids.get(i) + " after " + ids.get(i - 1));
+        }
+
+        scheduler.shutdown();
+        workers.shutdown();
+    }
+
+    private static void applied() throws InterruptedException {
+        DataAccess da = new DataAccess();
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+        OperationScheduler scheduler = new OperationScheduler(da, workers);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // The first operation blocks, the ones after it on another account complete
+        int blocked = scheduler.reserveOperationId();
+        CompletableFuture<Object> first = scheduler.submit(new int[] {1}, blocked, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        });
+        CompletableFuture<Object> disjoint = scheduler.submit(new int[] {2}, scheduler.reserveOperationId(), () -> true);
+        CompletableFuture<Object> conflicting = scheduler.submit(new int[] {2, 1}, scheduler.reserveOperationId(), () -> true);
+
+        Assert.assertEquals(Boolean.TRUE, disjoint.join());
+        Assert.assertFalse(conflicting.isDone());
+        Assert.assertEquals(blocked, scheduler.getApplied());
+
+        release.countDown();
+        Assert.assertEquals(Boolean.TRUE, conflicting.join());
+        Assert.assertTrue(first.isDone());
+        scheduler.drain();
+        Assert.assertEquals(da.getNextOperationId(), scheduler.getApplied());
+
+        scheduler.shutdown();
+        workers.shutdown();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ordering();
+        applied();
+        System.out.println("Operation scheduler: OK");
+    }
+}
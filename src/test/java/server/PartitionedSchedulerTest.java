@@ -0,0 +1,98 @@
+package server;
+
+import data.DataAccess;
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Checks the partitioned apply mode: every account sees its operations in delivery order, transfers handed off
+ * between partitions leave the same balances as running everything in order, and a handoff whose operation
+ * fails with an Error still releases the partition waiting for it.
+ * Operations work on in-memory balances, so no database is needed.
+ */
+public class PartitionedSchedulerTest {
+    private static final int PARTITIONS = 4;
+    private static final int ACCOUNTS = 64;
+    private static final int OPERATIONS = 100000;
+
+    private static void ordering() {
+        DataAccess da = new DataAccess();
+        PartitionedScheduler scheduler = new PartitionedScheduler(da, PARTITIONS, () -> {});
+
+        int[] balances = new int[ACCOUNTS];
+        int[] expected = new int[ACCOUNTS];
+        List<List<Integer>> applied = new ArrayList<>();
+        for(int a = 0; a < ACCOUNTS; a++)
+            applied.add(new ArrayList<>());
+
+        Random random = new Random(42);
+        List<CompletableFuture<Object>> results = new ArrayList<>();
+        for(int i = 0; i < OPERATIONS; i++) {
+            int from = random.nextInt(ACCOUNTS);
+            int opId = scheduler.reserveOperationId();
+            int amount = random.nextInt(100);
+
+            if(random.nextBoolean()) {
+                expected[from] += amount;
+                results.add(scheduler.submit(new int[] {from}, opId, () -> {
+                    balances[from] += amount;
+                    applied.get(from).add(opId);
+                    return balances[from];
+                }));
+            } else {
+                int to = random.nextInt(ACCOUNTS);
+                expected[from] -= amount;
+                expected[to] += amount;
+                results.add(scheduler.submit(new int[] {from, to}, opId, () -> {
+                    balances[from] -= amount;
+                    balances[to] += amount;
+                    applied.get(from).add(opId);
+                    if(to != from)
+                        applied.get(to).add(opId);
+                    return true;
+                }));
+            }
+        }
+
+        scheduler.drain();
+        for(CompletableFuture<Object> f : results)
+            Assert.assertNotNull(f.join());
+
+        Assert.assertEquals(da.getNextOperationId(), scheduler.getApplied());
+        for(int a = 0; a < ACCOUNTS; a++) {
+            Assert.assertEquals(expected[a], balances[a]);
+            List<Integer> ids = applied.get(a);
+            for(int i = 1; i < ids.size(); i++)
+                if(ids.get(i) <= ids.get(i - 1))
+                    throw new AssertionError("Account " + a + " applied " + ids.get(i) + " after " + ids.get(i - 1));
+        }
+        scheduler.shutdown();
+    }
+
+    private static void failedHandoff() throws InterruptedException, ExecutionException, TimeoutException {
+        PartitionedScheduler scheduler = new PartitionedScheduler(new DataAccess(), PARTITIONS, () -> {});
+
+        // Accounts 0 and 1 are on different partitions: 1 waits for 0 to run the transfer
+        CompletableFuture<Object> failed = scheduler.submit(new int[] {0, 1}, scheduler.reserveOperationId(), () -> {
+            throw new Error("Expected failure of a handed off transfer");
+        });
+        CompletableFuture<Object> next = scheduler.submit(new int[] {1}, scheduler.reserveOperationId(), () -> true);
+
+        Assert.assertEquals(Boolean.TRUE, next.get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(failed.isCompletedExceptionally());
+        scheduler.shutdown();
+    }
+
+    public static void main(String[] args) throws Exception {
+        ordering();
+        failedHandoff();
+        System.out.println("Partitioned scheduler: OK");
+    }
+}
@@ -0,0 +1,87 @@
+package server;
+
+import communication.Packet;
+import junit.framework.Assert;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Checks that the reply cache answers resent requests of the same client only, forgets the oldest requests
+ * of a client and idle sessions, and survives a snapshot and restore with the same behaviour.
+ */
+public class ReplyCacheTest {
+    private static final int PER_CLIENT = 4;
+    private static final int SESSION_OPS = 100;
+
+    private static final SocketAddress A = InetSocketAddress.createUnresolved("10.0.0.7", 7800);
+    private static final SocketAddress B = InetSocketAddress.createUnresolved("10.0.0.8", 7800);
+
+    private static CompletableFuture<Object> done(Object reply) {
+        return CompletableFuture.completedFuture(reply);
+    }
+
+    private static void dedup() {
+        ReplyCache cache = new ReplyCache();
+        CompletableFuture<Object> result = done(true);
+        cache.put(A, Packet.buildId(1, 0), result, 1);
+
+        Assert.assertTrue(cache.get(A, Packet.buildId(1, 0)) == result);
+        // Same stub id from another address, and another request of the same client
+        Assert.assertNull(cache.get(B, Packet.buildId(1, 0)));
+        Assert.assertNull(cache.get(A, Packet.buildId(1, 1)));
+        Assert.assertNull(cache.get(A, Packet.buildId(2, 0)));
+    }
+
+    private static void eviction() {
+        ReplyCache cache = new ReplyCache();
+        for(int msg = 0; msg <= PER_CLIENT; msg++)
+            cache.put(A, Packet.buildId(1, msg), done(msg), 1);
+
+        Assert.assertEquals(PER_CLIENT, cache.size());
+        Assert.assertNull(cache.get(A, Packet.buildId(1, 0)));
+        Assert.assertEquals(PER_CLIENT, cache.get(A, Packet.buildId(1, PER_CLIENT)).join());
+
+        // A's session is idle for more than SESSION_OPS operations when B's request is delivered
+        cache.put(B, Packet.buildId(2, 0), done(false), 1 + SESSION_OPS + 1);
+        Assert.assertNull(cache.get(A, Packet.buildId(1, PER_CLIENT)));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    private static void snapshot() {
+        ReplyCache cache = new ReplyCache();
+        cache.put(A, Packet.buildId(1, 0), done("31"), 10);
+        cache.put(B, Packet.buildId(1, 0), done(true), 20);
+        cache.put(A, Packet.buildId(3, 5), done(1500), 30);
+
+        ReplyCache.Snapshot snap = cache.snapshot();
+        ReplyCache restored = new ReplyCache();
+        restored.restore(snap.requests, snap.senders, snap.replies, snap.clocks);
+
+        Assert.assertEquals(3, restored.size());
+        Assert.assertEquals("31", restored.get(A, Packet.buildId(1, 0)).join());
+        Assert.assertEquals(true, restored.get(B, Packet.buildId(1, 0)).join());
+        Assert.assertEquals(1500, restored.get(A, Packet.buildId(3, 5)).join());
+
+        // Both copies expire the same sessions at the same point of the total order
+        for(ReplyCache c : new ReplyCache[] {cache, restored}) {
+            c.put(B, Packet.buildId(4, 0), done(null), 20 + SESSION_OPS + 1);
+            Assert.assertNull(c.get(A, Packet.buildId(1, 0)));
+            Assert.assertNull(c.get(B, Packet.buildId(1, 0)));
+            Assert.assertEquals(1500, c.get(A, Packet.buildId(3, 5)).join());
+            Assert.assertEquals(2, c.size());
+        }
+    }
+
+    public static void main(String[] args) {
+        // Read when the cache class is initialized
+        System.setProperty("bank.dedup.perClient", Integer.toString(PER_CLIENT));
+        System.setProperty("bank.dedup.sessionOps", Integer.toString(SESSION_OPS));
+
+        dedup();
+        eviction();
+        snapshot();
+        System.out.println("Reply cache: OK");
+    }
+}